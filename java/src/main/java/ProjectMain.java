@@ -3,8 +3,12 @@ import help.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ProjectMain {
@@ -15,7 +19,15 @@ public class ProjectMain {
             String paraIndex = args[1];
             String passageRanking = args[2];
             String runFileDir = args[3];
-            int takeKDocs = Integer.parseInt(args[4]);
+            // Either a single K or a comma-separated list of K values (all written in one pass)
+            List<Integer> takeKDocsList = toIntList(args[4]);
+
+            if (takeKDocsList.size() > 1) {
+                System.out.println("Using top " + takeKDocsList + " passages for query expansion.");
+                new AspectRetAspectLinkPRF(paraIndex, passageRanking, runFileDir, takeKDocsList);
+                return;
+            }
+            int takeKDocs = takeKDocsList.get(0);
 
             System.out.printf("Using top %d  passages for query expansion.\n", takeKDocs);
 
@@ -61,38 +73,75 @@ public class ProjectMain {
                     System.out.println("Wrong choice of analyzer! Exiting.");
                     System.exit(1);
             }
-            switch (similarity) {
-                case "BM25" :
-                case "bm25":
-                    System.out.println("Similarity: BM25");
-                    s1 = "bm25";
-                    break;
-                case "LMJM":
-                case "lmjm":
-                    System.out.println("Similarity: LMJM");
-                    s1 = "lmjm";
-                    break;
-                case "LMDS":
-                case "lmds":
-                    System.out.println("Similarity: LMDS");
-                    s1 = "lmds";
-                    break;
+            // A comma-separated list of similarities scores all of them in one pass and writes one run per similarity
+            List<String> similarities = new ArrayList<>();
+            for (String sim : similarity.split(",")) {
+                switch (sim) {
+                    case "BM25" :
+                    case "bm25":
+                        System.out.println("Similarity: BM25");
+                        s1 = "bm25";
+                        break;
+                    case "LMJM":
+                    case "lmjm":
+                        System.out.println("Similarity: LMJM");
+                        s1 = "lmjm";
+                        break;
+                    case "LMDS":
+                    case "lmds":
+                        System.out.println("Similarity: LMDS");
+                        s1 = "lmds";
+                        break;
 
-                default:
-                    System.out.println("Wrong choice of similarity! Exiting.");
-                    System.exit(1);
+                    default:
+                        System.out.println("Wrong choice of similarity! Exiting.");
+                        System.exit(1);
+                }
+                similarities.add(s1);
             }
 
-            String outFile = "AspectRetQE" + "-" + s1 + "-" + s2 + "-" + takeKDocs + "-" + takeKTerms + ".run";
-            String runFile = outFileDir + "/" + outFile;
+            List<String> runFiles = new ArrayList<>();
+            for (String sim : similarities) {
+                String outFile = "AspectRetQE" + "-" + sim + "-" + s2 + "-" + takeKDocs + "-" + takeKTerms + ".run";
+                runFiles.add(outFileDir + "/" + outFile);
+            }
 
-            new AspectRetQE(paraIndex, catalogIndex, passageRanking, runFile, stopWordsFile, queryIdToNameMapFile,
-                    omitQueryTerms, takeKTerms, takeKDocs, analyzer, similarity);
+            new AspectRetQE(paraIndex, catalogIndex, passageRanking, runFiles, stopWordsFile, queryIdToNameMapFile,
+                    omitQueryTerms, takeKTerms, takeKDocs, analyzer, similarities);
+        } else if (command.equalsIgnoreCase("aspect-ret-qe-sweep")) {
+            // Same arguments as aspect-ret-qe, but RM, number of terms and number of passages are comma-separated lists
+            // Example: aspect-ret-qe-sweep ... rm1,rm3 10,20,50 5,10,20 eng bm25,lmds
+            String paraIndex = args[1];
+            String catalogIndex = args[2];
+            String passageRanking = args[3];
+            String outFileDir = args[4];
+            String stopWordsFile = args[5];
+            String queryIdToNameMapFile = args[6];
+            List<Boolean> omitQueryTerms = new ArrayList<>();
+            for (String rm : args[7].split(",")) {
+                omitQueryTerms.add(rm.equalsIgnoreCase("rm1"));
+            }
+            List<Integer> takeKTerms = toIntList(args[8]);
+            List<Integer> takeKDocs = toIntList(args[9]);
+            String analyzer = args[10];
+            List<String> similarities = Arrays.asList(args[11].split(","));
+
+            System.out.println("Passages for query expansion: " + takeKDocs);
+            System.out.println("Terms for query expansion: " + takeKTerms);
+            System.out.println("Similarities: " + similarities);
+
+            new AspectRetQE(paraIndex, catalogIndex, passageRanking, outFileDir, stopWordsFile, queryIdToNameMapFile,
+                    omitQueryTerms, takeKTerms, takeKDocs, analyzer, similarities);
         }  else if (command.equalsIgnoreCase("catalog-ret")) {
             String indexDir = args[1];
-            String passageRun = args[2];
+            String queryIdToNameMapFile = args[2];
             String runFile = args[3];
-            new CatalogRetrieval(indexDir, passageRun, runFile);
+            int n = Integer.parseInt(args[4]);
+            // Optional aspect to entity map ("-" to use the EntityId column of the catalog index)
+            String aspectToEntityMapFile = args.length > 5 && !args[5].equals("-") ? args[5] : null;
+            // Optional file where the catalog search results are cached between runs
+            String cacheFile = args.length > 6 ? args[6] : null;
+            new CatalogRetrieval(indexDir, queryIdToNameMapFile, runFile, aspectToEntityMapFile, n, cacheFile);
         } else if (command.equalsIgnoreCase("support-psg-qe")) {
             String s1 = null, s2;
 
@@ -129,33 +178,41 @@ public class ProjectMain {
                     System.out.println("Wrong choice of analyzer! Exiting.");
                     System.exit(1);
             }
-            switch (similarity) {
-                case "BM25" :
-                case "bm25":
-                    System.out.println("Similarity: BM25");
-                    s1 = "bm25";
-                    break;
-                case "LMJM":
-                case "lmjm":
-                    System.out.println("Similarity: LMJM");
-                    s1 = "lmjm";
-                    break;
-                case "LMDS":
-                case "lmds":
-                    System.out.println("Similarity: LMDS");
-                    s1 = "lmds";
-                    break;
+            // A comma-separated list of similarities scores all of them in one pass and writes one run per similarity
+            List<String> similarities = new ArrayList<>();
+            for (String sim : similarity.split(",")) {
+                switch (sim) {
+                    case "BM25" :
+                    case "bm25":
+                        System.out.println("Similarity: BM25");
+                        s1 = "bm25";
+                        break;
+                    case "LMJM":
+                    case "lmjm":
+                        System.out.println("Similarity: LMJM");
+                        s1 = "lmjm";
+                        break;
+                    case "LMDS":
+                    case "lmds":
+                        System.out.println("Similarity: LMDS");
+                        s1 = "lmds";
+                        break;
 
-                default:
-                    System.out.println("Wrong choice of similarity! Exiting.");
-                    System.exit(1);
+                    default:
+                        System.out.println("Wrong choice of similarity! Exiting.");
+                        System.exit(1);
+                }
+                similarities.add(s1);
             }
 
-            String outFile = "SupportPsgQE" + "-" + s1 + "-" + s2 + "-" + takeKTerms + ".run";
-            String runFile = runFileDir + "/" + outFile;
+            List<String> runFiles = new ArrayList<>();
+            for (String sim : similarities) {
+                String outFile = "SupportPsgQE" + "-" + sim + "-" + s2 + "-" + takeKTerms + ".run";
+                runFiles.add(runFileDir + "/" + outFile);
+            }
 
-            new SupportPsgQE(paraIndex, catalogIndex, passageRanking, runFile, stopWordsFile, queryIdToNameMapFile, omitQueryTerms,
-                    takeKTerms, analyzer, similarity);
+            new SupportPsgQE(paraIndex, catalogIndex, passageRanking, runFiles, stopWordsFile, queryIdToNameMapFile, omitQueryTerms,
+                    takeKTerms, analyzer, similarities);
         } else if (command.equalsIgnoreCase("support-psg-aspect-link-prf")) {
             String paraIndex = args[1];
             String passageRanking = args[2];
@@ -169,29 +226,84 @@ public class ProjectMain {
             System.out.println("Indexing aspect links.");
             String corpusDir = args[1];
             String indexDir = args[2];
-            new IndexAspectLinkedCarCorpus(corpusDir, indexDir);
+            if (args.length > 5) {
+                // Decoder threads, indexing threads and documents between commits (0 for a single commit)
+                int numDecoders = Integer.parseInt(args[3]);
+                int numBuilders = Integer.parseInt(args[4]);
+                long commitEvery = Long.parseLong(args[5]);
+                // "default" or "bulk[,ram=MB][,compression=best_speed|best_compression][,optimize]"
+                IndexProfile profile = args.length > 6 ? IndexProfile.parse(args[6]) : IndexProfile.defaultProfile();
+                // Number of shards partitioned by paragraph id, 1 for a single index
+                int numShards = args.length > 7 ? Integer.parseInt(args[7]) : 1;
+                new IndexAspectLinkedCarCorpus(corpusDir, indexDir, numDecoders, numBuilders, commitEvery,
+                        profile, numShards);
+            } else {
+                new IndexAspectLinkedCarCorpus(corpusDir, indexDir);
+            }
         } else if (command.equalsIgnoreCase("index-catalog")) {
             String catalog = args[1];
             String indexDir = args[2];
+            int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            IndexProfile profile = args.length > 4 ? IndexProfile.parse(args[4]) : IndexProfile.defaultProfile();
             try {
-                new IndexCatalog(catalog, indexDir);
+                new IndexCatalog(catalog, indexDir, numThreads, profile);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         } else if (command.equalsIgnoreCase("create-association-file")) {
             String indexDir = args[1];
             String outFile = args[2];
-            Set<String> runFiles = new HashSet<>(Arrays.asList(Arrays.copyOfRange(args, 2, args.length)));
+            // The run files follow the output file
+            Set<String> runFiles = new LinkedHashSet<>(Arrays.asList(Arrays.copyOfRange(args, 3, args.length)));
             new CreateAssociationFile(indexDir, runFiles, outFile);
         } else if (command.equalsIgnoreCase("marginalize")) {
             String supportPassageRunFile = args[1];
             String candidatePassageRunFile = args[2];
             String newPassageRunFile = args[3];
-            new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile);
+            if (args.length > 4) {
+                // Sort the runs on disk and marginalize query by query, args[4] lines in memory at a time
+                new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile,
+                        Integer.parseInt(args[4]));
+            } else {
+                new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile);
+            }
+        } else if (command.equalsIgnoreCase("build-fst-dictionary")) {
+            // Compile a TSV/CSV (Key, Value) map into a .fst file which can be used in place of the TSV/CSV file
+            String inFile = args[1];
+            String fstFile = args[2];
+            String fileType = inFile.contains("tsv") ? "tsv" : "csv";
+            try {
+                FstDictionary.build(inFile, fileType, fstFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         } else if (command.equalsIgnoreCase("rra")) {
             String runFileDir = args[1];
             String outFile = args[2];
-            new ReciprocalRankAggregation(runFileDir, outFile);
+            // "stream" fuses runs sorted by query id one query at a time
+            boolean streaming = args.length > 3 && args[3].equals("stream");
+            new ReciprocalRankAggregation(runFileDir, outFile, streaming);
+        } else if (command.equalsIgnoreCase("fuse")) {
+            // Runs sorted by query id; method is rrf, combsum or combmnz
+            String runFileDir = args[1];
+            String outFile = args[2];
+            RankFusion.Method method = RankFusion.Method.valueOf(args[3].toUpperCase());
+            RankFusion.Normalization normalization = args.length > 4
+                    ? RankFusion.Normalization.valueOf(args[4].toUpperCase()) : RankFusion.Normalization.NONE;
+            int k = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+            Map<String, Double> weights = args.length > 6 ? RankFusion.parseWeights(args[6]) : new HashMap<>();
+            int numThreads = args.length > 7 ? Integer.parseInt(args[7]) : Runtime.getRuntime().availableProcessors();
+            int decimals = args.length > 8 ? Integer.parseInt(args[8]) : 6;
+            new RankFusion(runFileDir, outFile, method, normalization, k, weights, numThreads, decimals);
+        }
+    }
+
+    @NotNull
+    private static List<Integer> toIntList(@NotNull String arg) {
+        List<Integer> list = new ArrayList<>();
+        for (String s : arg.split(",")) {
+            list.add(Integer.parseInt(s.trim()));
         }
+        return list;
     }
 }
@@ -1,6 +1,8 @@
 package experiments;
 
+import help.IntDoubleHashMap;
 import help.LuceneHelper;
+import help.OrdinalDictionary;
 import help.Utilities;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.lucene.document.Document;
@@ -32,6 +34,10 @@ public class AspectRetAspectLinkPRF {
     private final IndexSearcher paraSearcher;
     private final Map<String, LinkedHashMap<String, Double>> paraRankings;
     private final int takeKDocs;
+    private final OrdinalDictionary aspectDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap aspectScores = new IntDoubleHashMap(1024);
+    private final OrdinalDictionary entityDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap entityScoreMap = new IntDoubleHashMap(1024);
 
     public AspectRetAspectLinkPRF(String paraIndex,
                                   String passageRanking,
@@ -44,11 +50,28 @@ public class AspectRetAspectLinkPRF {
         doTask(runFile);
     }
 
+    /**
+     * Produce runs for several values of K in one pass.
+     * The score of an aspect is a sum over the top-K passages, so the accumulators for a smaller K are a prefix of
+     * those for the largest K. Each passage is fetched once and the accumulators are snapshotted at every K.
+     * Runs are written to runFileDir as AspectRetAspectLinkPRF-K.run.
+     */
+
+    public AspectRetAspectLinkPRF(String paraIndex,
+                                  String passageRanking,
+                                  String runFileDir,
+                                  @NotNull List<Integer> takeKDocsList) {
+
+        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, "bm25");
+        this.paraRankings = Utilities.readRunFile(passageRanking);
+        this.takeKDocs = Collections.max(takeKDocsList);
+        doTask(runFileDir, new ArrayList<>(new TreeSet<>(takeKDocsList)));
+    }
+
     private void doTask(String runFile) {
         Set<String> querySet = paraRankings.keySet();
 
         Map<String, String> aspectToEntityMap = new HashMap<>();
-        Map<String, Double> aspectScores = new HashMap<>();
         Map<String, Double> entityScores;
         Set<String> runFileStrings;
         ProgressBar pb = new ProgressBar("Progress",querySet.size() );
@@ -60,10 +83,11 @@ public class AspectRetAspectLinkPRF {
             List<Map.Entry<String, Double>> topKDocs = getTopKDocsForQuery(paraRankings.get(query));
 
             // Get the set of aspects from the set of passages retrieved for the query
-            getAspectListForQuery(topKDocs, aspectToEntityMap, aspectScores);
+            getAspectListForQuery(topKDocs, aspectToEntityMap);
 
             // Convert the aspect scores to entity scores
-            entityScores = aspectToEntityScores(aspectScores, aspectToEntityMap);
+            entityScores = Utilities.aspectToEntityScores(aspectScores, aspectDictionary, aspectToEntityMap,
+                    entityDictionary, entityScoreMap);
 
             // Create run file strings and write to run file
             runFileStrings = makeRunFileStrings(query, entityScores);
@@ -71,6 +95,7 @@ public class AspectRetAspectLinkPRF {
 
             // Clear for next query
             aspectToEntityMap.clear();
+            aspectDictionary.clear();
             aspectScores.clear();
             entityScores.clear();
             runFileStrings.clear();
@@ -79,6 +104,42 @@ public class AspectRetAspectLinkPRF {
         pb.close();
     }
 
+    private void doTask(String runFileDir, @NotNull List<Integer> kDocs) {
+        Set<String> querySet = paraRankings.keySet();
+
+        Map<String, String> aspectToEntityMap = new HashMap<>();
+        ProgressBar pb = new ProgressBar("Progress",querySet.size() );
+
+        for (String query : querySet) {
+
+            // Passages up to the largest K; smaller K values use a prefix of this list
+            List<Map.Entry<String, Double>> topDocs = getTopKDocsForQuery(paraRankings.get(query));
+            int added = 0;
+
+            for (int k : kDocs) {
+                // Add the passages between the previous K and this one
+                int limit = Math.min(k, topDocs.size());
+                for (; added < limit; added++) {
+                    Map.Entry<String, Double> entry = topDocs.get(added);
+                    getAspectsInPara(entry.getKey(), entry.getValue(), aspectToEntityMap);
+                }
+
+                // Snapshot: convert the aspect scores so far to entity scores and write the run for this K
+                Map<String, Double> entityScores = Utilities.aspectToEntityScores(aspectScores, aspectDictionary,
+                        aspectToEntityMap, entityDictionary, entityScoreMap);
+                String runFile = runFileDir + "/" + "AspectRetAspectLinkPRF-" + k + ".run";
+                Utilities.writeFile(makeRunFileStrings(query, entityScores), runFile);
+            }
+
+            // Clear for next query
+            aspectToEntityMap.clear();
+            aspectDictionary.clear();
+            aspectScores.clear();
+            pb.step();
+        }
+        pb.close();
+    }
+
     @NotNull
     private List<Map.Entry<String, Double>> getTopKDocsForQuery(@NotNull LinkedHashMap<String, Double> psgRankings) {
         List<Map.Entry<String, Double>> allPsgRankings = new ArrayList<>(psgRankings.entrySet());
@@ -88,59 +149,56 @@ public class AspectRetAspectLinkPRF {
 
     }
 
-    @NotNull
-    private Map<String, Double> aspectToEntityScores(@NotNull Map<String, Double> aspectScores,
-                                                     Map<String, String> aspectToEntityMap) {
-        Map<String, Double> entityScores = new HashMap<>();
-
-        for (String aspectId : aspectScores.keySet()) {
-            String entity =  aspectToEntityMap.get(aspectId);
-            double score = aspectScores.get(aspectId);
-            entityScores.compute(entity, (t, oldV) -> (oldV == null) ? score : oldV + score);
-        }
-        return entityScores;
-    }
-
     /**
      * Get the aspects from the top-K passages retrieved for the query.
      * This method populates a Map of (AspectId, EntityId).
-     * It also scores the aspects.
+     * It also scores the aspects (in aspectScores, keyed by the ordinals of aspectDictionary).
      * Score of aspect = Sum of scores of passages it appears in.
      * @param topKDocs List of top-K passages for the query.
      * @param aspectToEntityMap Map of (AspectId, EntityId).
-     * @param aspectScores Map of (AspectId, AspectScore).
      */
 
 
     private void getAspectListForQuery(@NotNull List<Map.Entry<String, Double>> topKDocs,
-                                       Map<String, String> aspectToEntityMap,
-                                       Map<String, Double> aspectScores) {
+                                       Map<String, String> aspectToEntityMap) {
 
         for (Map.Entry<String, Double> entry : topKDocs) {
-            String paraId = entry.getKey();
-            double paraScore = entry.getValue();
-            try {
-                Document aspectDoc = LuceneHelper.searchIndex("Id", paraId, paraSearcher);
-                if (aspectDoc != null) {
-                    String[] aspectList = aspectDoc.get("Entities").split("\n");
-                    for (String aspectStr : aspectList) {
-                        if (!aspectStr.isEmpty()) {
-                            try {
-                                JSONObject jsonObject = new JSONObject(aspectStr);
-                                String aspectId = jsonObject.getString("aspect");
-                                String entityId = jsonObject.getString("linkPageId");
-                                aspectToEntityMap.put(aspectId, entityId);
-                                aspectScores.compute(aspectId, (t, oldV) -> (oldV == null) ? paraScore : oldV + paraScore);
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                            }
+            getAspectsInPara(entry.getKey(), entry.getValue(), aspectToEntityMap);
+        }
+    }
+
+    /**
+     * Add the aspects linked in one passage.
+     * Every aspect linked in the passage gets the score of the passage added to its score.
+     * @param paraId Id of the passage.
+     * @param paraScore Score of the passage.
+     * @param aspectToEntityMap Map of (AspectId, EntityId).
+     */
+
+    private void getAspectsInPara(String paraId,
+                                  double paraScore,
+                                  Map<String, String> aspectToEntityMap) {
+        try {
+            Document aspectDoc = LuceneHelper.searchIndex("Id", paraId, paraSearcher);
+            if (aspectDoc != null) {
+                String[] aspectList = aspectDoc.get("Entities").split("\n");
+                for (String aspectStr : aspectList) {
+                    if (!aspectStr.isEmpty()) {
+                        try {
+                            JSONObject jsonObject = new JSONObject(aspectStr);
+                            String aspectId = jsonObject.getString("aspect");
+                            String entityId = jsonObject.getString("linkPageId");
+                            aspectToEntityMap.put(aspectId, entityId);
+                            aspectScores.addTo(aspectDictionary.ordinal(aspectId), paraScore);
+                        } catch (JSONException e) {
+                            e.printStackTrace();
                         }
                     }
                 }
-
-            } catch (IOException | ParseException e) {
-                e.printStackTrace();
             }
+
+        } catch (IOException | ParseException e) {
+            e.printStackTrace();
         }
     }
 
@@ -151,11 +209,11 @@ public class AspectRetAspectLinkPRF {
 
         int rank = 1;
         String info = "AspectRetAspectLinkPRF";
-        Map<String, Double> sortedScoreMap = Utilities.sortByValueDescending(scoreMap);
 
-        for (String entity : sortedScoreMap.keySet()) {
-            runFileString = query + " " + "0" + " " + entity + " " +
-                    rank++ + " " + sortedScoreMap.get(entity) + " "+ info ;
+        // The scores are already sorted (see Utilities.aspectToEntityScores)
+        for (Map.Entry<String, Double> entry : scoreMap.entrySet()) {
+            runFileString = query + " " + "0" + " " + entry.getKey() + " " +
+                    rank++ + " " + entry.getValue() + " "+ info ;
             runFileStrings.add(runFileString);
         }
         return runFileStrings;
@@ -1,6 +1,9 @@
 package experiments;
 
+import help.IntDoubleHashMap;
 import help.LuceneHelper;
+import help.MultiSimilarityScorer;
+import help.OrdinalDictionary;
 import help.RAMIndex;
 import help.Utilities;
 import me.tongfei.progressbar.ProgressBar;
@@ -14,6 +17,7 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.similarities.Similarity;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -44,7 +48,13 @@ public class AspectRetQE {
     private final boolean omitQueryTerms;
     private final int takeKTerms, takeKDocs;
     private final Analyzer analyzer;
-    private final Similarity similarity;
+    private final List<Similarity> similarities;
+    private final OrdinalDictionary termDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap termWeights = new IntDoubleHashMap(4096);
+    private final int[] expansionTermOrds;
+    private final double[] expansionTermWeights;
+    private final OrdinalDictionary entityDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap entityScoreMap = new IntDoubleHashMap(1024);
 
 
     public AspectRetQE(String paraIndex,
@@ -59,13 +69,43 @@ public class AspectRetQE {
                        String analyzerStr,
                        String similarityStr) {
 
-        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, similarityStr);
-        this.catalogSearcher = LuceneHelper.createSearcher(catalogIndex, similarityStr);
+        this(paraIndex, catalogIndex, passageRanking, Collections.singletonList(runFile), stopWordsFile,
+                queryIdToNameMapFile, omitQueryTerms, takeKTerms, takeKDocs, analyzerStr,
+                Collections.singletonList(similarityStr));
+    }
+
+    /**
+     * Score the aspects under several similarities at once and write one run file per similarity.
+     * Everything up to the aspect index is shared, and the aspects are scored under all similarities from one
+     * pass over the term statistics of the index (see MultiSimilarityScorer).
+     * @param runFiles One run file per similarity, in the same order as similarityStrs.
+     * @param similarityStrs Similarities to score with (bm25|lmds|lmjm).
+     */
+
+    public AspectRetQE(String paraIndex,
+                       String catalogIndex,
+                       String passageRanking,
+                       @NotNull List<String> runFiles,
+                       String stopWordsFile,
+                       @NotNull String queryIdToNameMapFile,
+                       boolean omitQueryTerms,
+                       int takeKTerms,
+                       int takeKDocs,
+                       String analyzerStr,
+                       @NotNull List<String> similarityStrs) {
+
+        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, similarityStrs.get(0));
+        this.catalogSearcher = LuceneHelper.createSearcher(catalogIndex, similarityStrs.get(0));
         this.omitQueryTerms = omitQueryTerms;
         this.takeKDocs = takeKDocs;
         this.takeKTerms = takeKTerms;
+        this.expansionTermOrds = new int[Math.max(takeKTerms, 0)];
+        this.expansionTermWeights = new double[Math.max(takeKTerms, 0)];
         this.analyzer = LuceneHelper.getAnalyzer(analyzerStr, Arrays.asList("Id", "Name", "Text", "Entities"));
-        this.similarity = LuceneHelper.getSimilarity(similarityStr);
+        this.similarities = new ArrayList<>();
+        for (String similarityStr : similarityStrs) {
+            this.similarities.add(LuceneHelper.getSimilarity(similarityStr));
+        }
         String sep = queryIdToNameMapFile.contains("tsv") ? "tsv" : "csv";
 
         System.out.print("Loading passage run....");
@@ -73,24 +113,80 @@ public class AspectRetQE {
         System.out.println("[Done].");
 
         System.out.print("Loading " + sep + " file....");
-        this.queryIdToNameMap = Utilities.readTsvOrCsvFile(queryIdToNameMapFile, sep);
+        this.queryIdToNameMap = Utilities.readDictionary(queryIdToNameMapFile, sep);
         System.out.println("[Done].");
 
         System.out.print("Loading stop words....");
         List<String> stopWords = Utilities.getStopWords(stopWordsFile);
         System.out.println("[Done].");
 
-        doTask(runFile, stopWords);
+        doTask(runFiles, stopWords);
 
     }
 
-    private void doTask(String runFile, List<String> stopWords) {
+    /**
+     * Parameter sweep over takeKDocs x takeKTerms x RM1/RM3.
+     * Everything is loaded once. For each query, the feedback passages are fetched and analyzed once (up to the
+     * largest K) and the term distribution and aspect set are grown incrementally as K increases.
+     * One run file is written per configuration (and similarity), named like the single runs made by ProjectMain.
+     */
+
+    public AspectRetQE(String paraIndex,
+                       String catalogIndex,
+                       String passageRanking,
+                       String outFileDir,
+                       String stopWordsFile,
+                       @NotNull String queryIdToNameMapFile,
+                       @NotNull List<Boolean> omitQueryTermsList,
+                       @NotNull List<Integer> takeKTermsList,
+                       @NotNull List<Integer> takeKDocsList,
+                       String analyzerStr,
+                       @NotNull List<String> similarityStrs) {
+
+        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, similarityStrs.get(0));
+        this.catalogSearcher = LuceneHelper.createSearcher(catalogIndex, similarityStrs.get(0));
+        this.omitQueryTerms = omitQueryTermsList.get(0);
+        this.takeKDocs = Collections.max(takeKDocsList);
+        this.takeKTerms = Collections.max(takeKTermsList);
+        this.expansionTermOrds = new int[Math.max(takeKTerms, 0)];
+        this.expansionTermWeights = new double[Math.max(takeKTerms, 0)];
+        this.analyzer = LuceneHelper.getAnalyzer(analyzerStr, Arrays.asList("Id", "Name", "Text", "Entities"));
+        this.similarities = new ArrayList<>();
+        List<String> similarityNames = new ArrayList<>();
+        for (String similarityStr : similarityStrs) {
+            this.similarities.add(LuceneHelper.getSimilarity(similarityStr));
+            similarityNames.add(similarityStr.toLowerCase());
+        }
+        String sep = queryIdToNameMapFile.contains("tsv") ? "tsv" : "csv";
+
+        System.out.print("Loading passage run....");
+        this.paraRankings = Utilities.readRunFile(passageRanking);
+        System.out.println("[Done].");
+
+        System.out.print("Loading " + sep + " file....");
+        this.queryIdToNameMap = Utilities.readDictionary(queryIdToNameMapFile, sep);
+        System.out.println("[Done].");
+
+        System.out.print("Loading stop words....");
+        List<String> stopWords = Utilities.getStopWords(stopWordsFile);
+        System.out.println("[Done].");
+
+        List<Integer> kDocs = new ArrayList<>(new TreeSet<>(takeKDocsList));
+        List<Integer> kTerms = new ArrayList<>(new TreeSet<>(takeKTermsList));
+        List<Boolean> omit = new ArrayList<>(new LinkedHashSet<>(omitQueryTermsList));
+        System.out.println("Sweeping " + (kDocs.size() * kTerms.size() * omit.size() * similarities.size()) +
+                " configurations.");
+
+        doSweep(outFileDir, similarityNames, stopWords, kDocs, kTerms, omit);
+    }
+
+    private void doTask(List<String> runFiles, List<String> stopWords) {
         Set<String> querySet = paraRankings.keySet();
         List<Document> aspectList = new ArrayList<>();
 
 
         Map<String, String> aspectToEntityMap = new HashMap<>();
-        Map<String, Double> aspectScores;
+        List<Map<String, Double>> aspectScores;
         Map<String, Double> entityScores;
         Set<String> runFileStrings;
         ProgressBar pb = new ProgressBar("Progress",querySet.size() );
@@ -111,22 +207,115 @@ public class AspectRetQE {
             // Create a list of all aspects in the query in the form of Lucene Documents
             aspectToLuceneDoc(aspectList, aspectToEntityMap.keySet());
 
-            // Now score the aspects using the expanded query
+            // Now score the aspects using the expanded query (one ranking per similarity)
             aspectScores = scoreAspects(booleanQuery, aspectList);
 
-            // Convert the aspect scores to entity scores
-            entityScores = aspectToEntityScores(aspectScores, aspectToEntityMap);
+            for (int i = 0; i < runFiles.size(); i++) {
+                // Convert the aspect scores to entity scores
+                entityScores = Utilities.aspectToEntityScores(aspectScores.get(i), aspectToEntityMap,
+                        entityDictionary, entityScoreMap);
 
-            // Create run file strings and write to run file
-            runFileStrings = makeRunFileStrings(query, entityScores);
-            Utilities.writeFile(runFileStrings, runFile);
+                // Create run file strings and write to run file
+                runFileStrings = makeRunFileStrings(query, entityScores);
+                Utilities.writeFile(runFileStrings, runFiles.get(i));
+            }
 
             // Clear for next query
             aspectList.clear();
             aspectToEntityMap.clear();
-            aspectScores.clear();
-            entityScores.clear();
-            runFileStrings.clear();
+            pb.step();
+        }
+        pb.close();
+    }
+
+    private void doSweep(String outFileDir,
+                         List<String> similarityNames,
+                         List<String> stopWords,
+                         @NotNull List<Integer> kDocs,
+                         @NotNull List<Integer> kTerms,
+                         @NotNull List<Boolean> omit) {
+        Set<String> querySet = paraRankings.keySet();
+        Map<String, String> aspectToEntityMap = new HashMap<>();
+        Map<String, Document> aspectDocs = new HashMap<>();
+        double[] scaledTermWeights = new double[expansionTermWeights.length];
+        ProgressBar pb = new ProgressBar("Progress", querySet.size());
+
+        for (String query : querySet) {
+            String queryStr = queryIdToNameMap.get(query);
+
+            // Passages up to the largest K; smaller K values use a prefix of this list
+            List<Map.Entry<String, Double>> topDocs = getTopKDocsForQuery(paraRankings.get(query));
+            termWeights.clear();
+            float normalizer = 0.0f;
+            int added = 0;
+
+            for (int k : kDocs) {
+                // Grow the feedback set from the previous K to this one.
+                // Weights are accumulated un-normalized, the normalizer of this K is applied when the query is built.
+                int limit = Math.min(k, topDocs.size());
+                for (; added < limit; added++) {
+                    Map.Entry<String, Double> entry = topDocs.get(added);
+                    normalizer += entry.getValue();
+                    try {
+                        addTokens(getProcessedDocText(entry.getKey(), stopWords), entry.getValue());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    getAspectsInPara(entry.getKey(), aspectToEntityMap);
+                }
+
+                int numTerms = termWeights.topK(takeKTerms, expansionTermOrds, expansionTermWeights);
+                for (int i = 0; i < numTerms; i++) {
+                    scaledTermWeights[i] = expansionTermWeights[i] / normalizer;
+                }
+
+                // Index the aspects of the top-K passages once and search the index with every expanded query
+                List<Document> aspectList = new ArrayList<>();
+                for (String aspectId : aspectToEntityMap.keySet()) {
+                    if (!aspectDocs.containsKey(aspectId)) {
+                        aspectDocs.put(aspectId, getAspectDoc(aspectId));
+                    }
+                    aspectList.add(aspectDocs.get(aspectId));
+                }
+                IndexWriter iw = RAMIndex.createWriter(analyzer);
+                IndexSearcher is = null;
+                try {
+                    RAMIndex.createIndex(aspectList, iw);
+                    is = RAMIndex.createSearcher(similarities.get(0), iw);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                assert is != null;
+
+                for (int t : kTerms) {
+                    for (boolean omitQuery : omit) {
+                        BooleanQuery booleanQuery = null;
+                        try {
+                            booleanQuery = Utilities.toRm3Query(queryStr, expansionTermOrds, scaledTermWeights,
+                                    Math.min(t, numTerms), termDictionary, omitQuery, "Text", analyzer);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        List<Map<String, Double>> aspectScores = searchAspects(booleanQuery, is);
+                        for (int i = 0; i < similarityNames.size(); i++) {
+                            Map<String, Double> entityScores = Utilities.aspectToEntityScores(aspectScores.get(i),
+                                    aspectToEntityMap, entityDictionary, entityScoreMap);
+                            String runFile = outFileDir + "/AspectRetQE" + "-" + similarityNames.get(i) + "-" +
+                                    (omitQuery ? "rm1" : "rm3") + "-" + k + "-" + t + ".run";
+                            Utilities.writeFile(makeRunFileStrings(query, entityScores), runFile);
+                        }
+                    }
+                }
+                try {
+                    RAMIndex.close(iw);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // Clear for next query
+            aspectToEntityMap.clear();
+            aspectDocs.clear();
             pb.step();
         }
         pb.close();
@@ -145,14 +334,13 @@ public class AspectRetQE {
     private BooleanQuery toBooleanQuery(String query, List<Map.Entry<String, Double>> topKDocs,
                                         List<String> stopWords) {
 
-        Map<String, Double> termDist = getTermDistribution(topKDocs, stopWords);
+        getTermDistribution(topKDocs, stopWords);
+        int numTerms = termWeights.topK(takeKTerms, expansionTermOrds, expansionTermWeights);
         // Convert the query to an expanded BooleanQuery
         BooleanQuery booleanQuery = null;
-        List<Map.Entry<String, Double>> allWordFreqList = new ArrayList<>(termDist.entrySet());
-        List<Map.Entry<String, Double>> expansionTerms = allWordFreqList.subList(0,
-                Math.min(takeKTerms, allWordFreqList.size()));
         try {
-            booleanQuery = Utilities.toRm3Query(query, expansionTerms, omitQueryTerms, "Text", analyzer);
+            booleanQuery = Utilities.toRm3Query(query, expansionTermOrds, expansionTermWeights, numTerms,
+                    termDictionary, omitQueryTerms, "Text", analyzer);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -162,10 +350,16 @@ public class AspectRetQE {
 
     }
 
-    @NotNull
-    private Map<String, Double> getTermDistribution(@NotNull List<Map.Entry<String, Double>> topKDocs,
-                                                    List<String> stopWords) {
-        Map<String, Double> freqDist = new HashMap<>();
+    /**
+     * Compute the relevance model over the feedback passages into termWeights.
+     * Terms are accumulated by ordinal so that no boxed Double is created per token.
+     * @param topKDocs Feedback passages with their scores.
+     * @param stopWords Stop words to remove.
+     */
+
+    private void getTermDistribution(@NotNull List<Map.Entry<String, Double>> topKDocs,
+                                     List<String> stopWords) {
+        termWeights.clear();
 
         // compute score normalizer
         float normalizer = 0.0f;
@@ -177,24 +371,22 @@ public class AspectRetQE {
             double weight = entry.getValue() / normalizer;
             String processedDocText = getProcessedDocText(entry.getKey(), stopWords);
             try {
-                addTokens(processedDocText, weight, freqDist);
+                addTokens(processedDocText, weight);
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
         }
-
-        return Utilities.sortByValueDescending(freqDist);
     }
     private  void addTokens(String content,
-                            double weight,
-                            Map<String,Double> wordFreq) throws IOException {
+                            double weight) throws IOException {
 
         TokenStream tokenStream = analyzer.tokenStream("Text", new StringReader(content));
+        CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
         tokenStream.reset();
         while (tokenStream.incrementToken()) {
-            final String token = tokenStream.getAttribute(CharTermAttribute.class).toString();
-            wordFreq.compute(token, (t, oldV) -> (oldV == null) ? weight : oldV + weight);
+            int termOrd = termDictionary.ordinal(termAttribute.buffer(), termAttribute.length());
+            termWeights.addTo(termOrd, weight);
         }
         tokenStream.end();
         tokenStream.close();
@@ -255,21 +447,8 @@ public class AspectRetQE {
     }
 
     @NotNull
-    private Map<String, Double> aspectToEntityScores(@NotNull Map<String, Double> aspectScores,
-                                                    Map<String, String> aspectToEntityMap) {
-        Map<String, Double> entityScores = new HashMap<>();
-
-        for (String aspectId : aspectScores.keySet()) {
-            String entity =  aspectToEntityMap.get(aspectId);
-            double score = aspectScores.get(aspectId);
-            entityScores.compute(entity, (t, oldV) -> (oldV == null) ? score : oldV + score);
-        }
-        return entityScores;
-    }
-
-    @NotNull
-    private Map<String, Double> scoreAspects(BooleanQuery booleanQuery, List<Document> aspectList) {
-        Map<String, Double> aspectScores;
+    private List<Map<String, Double>> scoreAspects(BooleanQuery booleanQuery, List<Document> aspectList) {
+        List<Map<String, Double>> aspectScores;
         // Build the index of aspects
         // First create the IndexWriter
         IndexWriter iw = RAMIndex.createWriter(analyzer);
@@ -285,14 +464,14 @@ public class AspectRetQE {
 
         IndexSearcher is = null;
         try {
-            is = RAMIndex.createSearcher(similarity, iw);
+            is = RAMIndex.createSearcher(similarities.get(0), iw);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         // Now search the query
         assert is != null;
-        aspectScores = Utilities.sortByValueDescending(RAMIndex.searchIndex(booleanQuery, 1000, is));
+        aspectScores = searchAspects(booleanQuery, is);
         try {
             RAMIndex.close(iw);
         } catch (IOException e) {
@@ -301,6 +480,29 @@ public class AspectRetQE {
         return aspectScores;
     }
 
+    /**
+     * Search the aspect index with the query under every similarity.
+     * With a single similarity this is a plain Lucene search.
+     * @return One Map of (AspectId, Score) per similarity, sorted by descending score.
+     */
+
+    @NotNull
+    private List<Map<String, Double>> searchAspects(BooleanQuery booleanQuery, @NotNull IndexSearcher is) {
+        if (similarities.size() == 1) {
+            return Collections.singletonList(Utilities.sortByValueDescending(RAMIndex.searchIndex(booleanQuery, 1000, is)));
+        }
+        try {
+            return MultiSimilarityScorer.searchIndex(booleanQuery, 1000, is, similarities);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        List<Map<String, Double>> empty = new ArrayList<>();
+        for (int i = 0; i < similarities.size(); i++) {
+            empty.add(new HashMap<>());
+        }
+        return empty;
+    }
+
 
     private void getAspectListForQuery(@NotNull List<Map.Entry<String, Double>> topKDocs,
                                        Map<String, String> aspectToEntityMap) {
@@ -334,6 +536,16 @@ public class AspectRetQE {
         }
     }
 
+    @Nullable
+    private Document getAspectDoc(String aspectId) {
+        try {
+            return LuceneHelper.searchIndex("Id", aspectId, catalogSearcher);
+        } catch (IOException | ParseException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
 
     private void getAspectToEntityMap(@NotNull String entity, Map<String, String> aspectToEntityMap) {
 
@@ -358,11 +570,11 @@ public class AspectRetQE {
 
         int rank = 1;
         String info = "AspectRetQE";
-        Map<String, Double> sortedScoreMap = Utilities.sortByValueDescending(scoreMap);
 
-        for (String entity : sortedScoreMap.keySet()) {
-            runFileString = query + " " + "0" + " " + entity + " " +
-                    rank++ + " " + sortedScoreMap.get(entity) + " "+ info ;
+        // The scores are already sorted (see Utilities.aspectToEntityScores)
+        for (Map.Entry<String, Double> entry : scoreMap.entrySet()) {
+            runFileString = query + " " + "0" + " " + entry.getKey() + " " +
+                    rank++ + " " + entry.getValue() + " "+ info ;
             runFileStrings.add(runFileString);
         }
         return runFileStrings;
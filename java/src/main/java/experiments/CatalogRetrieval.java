@@ -1,6 +1,11 @@
 package experiments;
 
+import help.EntityAggregatingCollector;
+import help.IndexCatalog;
+import help.IntDoubleHashMap;
 import help.LuceneHelper;
+import help.OrdinalDictionary;
+import help.SearchResultCache;
 import help.Utilities;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
@@ -11,16 +16,20 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 /**
  * Use query to retrieve aspects from aspect index directly.
  * Convert aspect scores to entity scores.
  * Score of entity = Sum of aspect scores of aspects it links to.
+ * The entity of an aspect is read from the EntityId column of the catalog index, or from an aspect to entity map
+ * if one is given.
  *
  * @author Shubham Chatterjee
  * @version 2/24/2021
@@ -28,9 +37,15 @@ import java.util.*;
 
 public class CatalogRetrieval {
 
+    // Similarity of aspectSearcher; also part of the cache keys, so cached results are only used with the same one
+    private final String similarity = "bm25";
     private final IndexSearcher aspectSearcher;
     private final Map<String, String> aspectToEntityMap;
     private final int topK;
+    private final OrdinalDictionary entityDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap entityScoreMap = new IntDoubleHashMap(1024);
+    private final EntityAggregatingCollector entityCollector;
+    private final SearchResultCache cache;
 
 
     public CatalogRetrieval(String catalogIndex,
@@ -38,19 +53,61 @@ public class CatalogRetrieval {
                             String runFile,
                             @NotNull String aspectToEntityMapFile,
                             int n) {
-        this.aspectSearcher = LuceneHelper.createSearcher(catalogIndex, "bm25");
+        this(catalogIndex, queryIdToNameMapFile, runFile, aspectToEntityMapFile, n, null);
+    }
+
+    /**
+     * Same as above, but the entity of each aspect is read from the EntityId column of the catalog index,
+     * so no aspect to entity map is needed.
+     */
+
+    public CatalogRetrieval(String catalogIndex,
+                            @NotNull String queryIdToNameMapFile,
+                            String runFile,
+                            int n) {
+        this(catalogIndex, queryIdToNameMapFile, runFile, null, n, null);
+    }
+
+    /**
+     * @param aspectToEntityMapFile Aspect to entity map, or null to use the EntityId column of the catalog index.
+     * @param cacheFile File where the catalog search results are cached between runs, or null for no cache.
+     */
+
+    public CatalogRetrieval(String catalogIndex,
+                            @NotNull String queryIdToNameMapFile,
+                            String runFile,
+                            @Nullable String aspectToEntityMapFile,
+                            int n,
+                            @Nullable String cacheFile) {
+        this.aspectSearcher = LuceneHelper.createSearcher(catalogIndex, similarity);
         this.topK = n;
-        String sep = aspectToEntityMapFile.contains("tsv") ? "tsv" : "csv";
 
-        System.out.print("Loading aspect to entity map file....");
-        this.aspectToEntityMap = Utilities.readTsvOrCsvFile(aspectToEntityMapFile, sep);
-        System.out.println("[Done].");
+        if (aspectToEntityMapFile != null) {
+            System.out.print("Loading aspect to entity map file....");
+            String aspectSep = aspectToEntityMapFile.contains("tsv") ? "tsv" : "csv";
+            this.aspectToEntityMap = Utilities.readDictionary(aspectToEntityMapFile, aspectSep);
+            this.entityCollector = null;
+            System.out.println("[Done].");
+        } else {
+            this.aspectToEntityMap = null;
+            try {
+                this.entityCollector = new EntityAggregatingCollector(aspectSearcher.getIndexReader(),
+                        IndexCatalog.ENTITY_FIELD, n);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.cache = cacheFile == null ? null : new SearchResultCache(cacheFile, aspectSearcher);
 
         System.out.print("Loading queryId to Name map file....");
-        Map<String, String> queryIdToNameMap = Utilities.readTsvOrCsvFile(queryIdToNameMapFile, sep);
+        String querySep = queryIdToNameMapFile.contains("tsv") ? "tsv" : "csv";
+        Map<String, String> queryIdToNameMap = Utilities.readDictionary(queryIdToNameMapFile, querySep);
         System.out.println("[Done].");
 
         doTask(queryIdToNameMap, runFile);
+        if (cache != null) {
+            cache.save();
+        }
 
         System.out.println("Run file written to:" + runFile);
     }
@@ -62,9 +119,13 @@ public class CatalogRetrieval {
             try {
                 String queryStr = queryMap.get(queryId);
                 BooleanQuery booleanQuery = Utilities.toQuery(queryStr, new EnglishAnalyzer(), "Text");
-                TopDocs topDocs  = LuceneHelper.searchIndex(booleanQuery, topK, aspectSearcher);
-                Map<String, Double> docScores = toDocScores(topDocs);
-                Map<String, Double> entityScores = aspectToEntityScores(docScores);
+                Map<String, Double> entityScores;
+                if (aspectToEntityMap == null) {
+                    entityScores = searchEntities(booleanQuery);
+                } else {
+                    entityScores = Utilities.aspectToEntityScores(searchAspects(booleanQuery), aspectToEntityMap,
+                            entityDictionary, entityScoreMap);
+                }
                 Set<String> runFileStrings = makeRunFileStrings(queryId, entityScores);
                 Utilities.writeFile(runFileStrings, runFile);
                 pb.step();
@@ -75,22 +136,45 @@ public class CatalogRetrieval {
         pb.close();
     }
 
+    /**
+     * Aggregate the top aspects into entities during the search (or get the entity scores from the cache).
+     */
     @NotNull
-    private Map<String, Double> aspectToEntityScores(@NotNull Map<String, Double> aspectScores) {
-        Map<String, Double> entityScores = new HashMap<>();
-        for (String aspectId : aspectScores.keySet()) {
-            if (aspectToEntityMap.containsKey(aspectId)) {
-                String entity = aspectToEntityMap.get(aspectId);
-                double score = aspectScores.get(aspectId);
-                entityScores.compute(entity, (t, oldV) -> (oldV == null) ? score : oldV + score);
+    private Map<String, Double> searchEntities(BooleanQuery booleanQuery) throws IOException {
+        String key = "entities|" + SearchResultCache.key(similarity, topK, booleanQuery);
+        Map<String, Double> entityScores = cache == null ? null : cache.get(key);
+        if (entityScores == null) {
+            entityCollector.reset();
+            aspectSearcher.search(booleanQuery, entityCollector);
+            entityScores = entityCollector.getEntityScores();
+            if (cache != null) {
+                cache.put(key, entityScores);
             }
         }
         return entityScores;
     }
 
+    /**
+     * Get the top aspects for the query (from the cache if the search was done before).
+     */
+    @NotNull
+    private Map<String, Double> searchAspects(BooleanQuery booleanQuery) throws IOException {
+        String key = SearchResultCache.key(similarity, topK, booleanQuery);
+        Map<String, Double> docScores = cache == null ? null : cache.get(key);
+        if (docScores == null) {
+            TopDocs topDocs  = LuceneHelper.searchIndex(booleanQuery, topK, aspectSearcher);
+            docScores = toDocScores(topDocs);
+            if (cache != null) {
+                cache.put(key, docScores);
+            }
+        }
+        return docScores;
+    }
+
     @NotNull
     private Map<String, Double> toDocScores(@NotNull TopDocs topDocs) {
-        Map<String, Double> docScores = new HashMap<>();
+        // Rank order, so that a result read back from the cache is aggregated in the same order
+        Map<String, Double> docScores = new LinkedHashMap<>();
         ScoreDoc[] scoreDocs = topDocs.scoreDocs;
         for (int i = 0; i < scoreDocs.length; i++) {
             try {
@@ -112,11 +196,11 @@ public class CatalogRetrieval {
 
         int rank = 1;
         String info = "Baseline-CatalogRetrieval-Top-" + topK;
-        Map<String, Double> sortedScoreMap = Utilities.sortByValueDescending(scoreMap);
 
-        for (String entity : sortedScoreMap.keySet()) {
-            runFileString = query + " " + "Q0" + " " + entity + " " +
-                    rank++ + " " + sortedScoreMap.get(entity) + " "+ info ;
+        // The scores are already sorted, by the collector or by Utilities.aspectToEntityScores
+        for (Map.Entry<String, Double> entry : scoreMap.entrySet()) {
+            runFileString = query + " " + "Q0" + " " + entry.getKey() + " " +
+                    rank++ + " " + entry.getValue() + " "+ info ;
             runFileStrings.add(runFileString);
         }
         return runFileStrings;
@@ -126,12 +210,15 @@ public class CatalogRetrieval {
         String catalogIndex = args[0];
         String queryIdToNameMapFile = args[1];
         String saveDir = args[2];
-        String aspectToEntityMapFile = args[3];
-        int n = Integer.parseInt(args[4]);
+        int n = Integer.parseInt(args[3]);
 
         String runFile = saveDir + "/Baseline-CatalogRetrieval.run";
 
-        new CatalogRetrieval(catalogIndex, queryIdToNameMapFile, runFile, aspectToEntityMapFile, n);
+        // Optional: aspect to entity map ("-" for none) and search result cache file
+        String aspectToEntityMapFile = args.length > 4 && !args[4].equals("-") ? args[4] : null;
+        String cacheFile = args.length > 5 ? args[5] : null;
+
+        new CatalogRetrieval(catalogIndex, queryIdToNameMapFile, runFile, aspectToEntityMapFile, n, cacheFile);
     }
 }
 
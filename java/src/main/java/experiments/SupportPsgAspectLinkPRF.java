@@ -1,6 +1,8 @@
 package experiments;
 
+import help.IntDoubleHashMap;
 import help.LuceneHelper;
+import help.OrdinalDictionary;
 import help.Utilities;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.lucene.document.Document;
@@ -28,6 +30,8 @@ public class SupportPsgAspectLinkPRF {
 
     private final IndexSearcher paraSearcher;
     private final Map<String, Map<String, Map<String, Double>>> supportPassageMap;
+    private final OrdinalDictionary aspectDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap aspectScoreMap = new IntDoubleHashMap(1024);
 
     public SupportPsgAspectLinkPRF(String paraIndex,
                                    String supportPassageRunFile,
@@ -70,29 +74,64 @@ public class SupportPsgAspectLinkPRF {
     private Map<String, Double> reRankEntities(@NotNull Map<String, Map<String, Double>> entityToParaMap) {
         Map<String, Double> entitySores = new HashMap<>();
 
+        // Passages are shared by many entities of the query, so their links are read once for the whole query
+        Map<String, Map<String, String>> linkTable = makeLinkTable(entityToParaMap);
+
         for (String entity: entityToParaMap.keySet()) {
-            double score = scoreEntity(entity, entityToParaMap.get(entity));
+            double score = scoreEntity(entityToParaMap.get(entity), linkTable.get(entity));
             entitySores.put(entity, score);
         }
         return entitySores;
     }
 
-    private double scoreEntity(String entity, Map<String, Double> psgRanking) {
+    private double scoreEntity(Map<String, Double> psgRanking, Map<String, String> entityLinks) {
 
 
         // Rank the aspects using the expanded query
-        Map<String, Double> aspectScoresForEntity = getAspectsForEntity(entity, psgRanking);
+        getAspectsForEntity(psgRanking, entityLinks);
 
         // Score of entity = Sum of scores of its aspects
-        return aspectScoresForEntity.values().stream().mapToDouble(Double::valueOf).sum();
+        return aspectScoreMap.sum();
     }
 
+    /**
+     * Score the aspects of the entity into aspectScoreMap (ordinals from aspectDictionary).
+     */
+    private void getAspectsForEntity(@NotNull Map<String, Double> psgRanking,
+                                     Map<String, String> entityLinks) {
+        aspectDictionary.clear();
+        aspectScoreMap.clear();
+
+        if (entityLinks == null) {
+            // The entity is not linked in any of its support passages
+            return;
+        }
+
+        for (Map.Entry<String, Double> entry : psgRanking.entrySet()) {
+            String aspectId = entityLinks.get(entry.getKey());
+            if (aspectId != null) {
+                aspectScoreMap.addTo(aspectDictionary.ordinal(aspectId), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Build the link table for the passage pool of a query.
+     * Every passage is fetched from the index and its links are parsed only once.
+     * If an entity is linked more than once in a passage, the first link is used.
+     * @param entityToParaMap Map of (Entity, Map of (Passage, Score)) for the query.
+     * @return Map where Key = Entity and Value = Map of (Passage, Aspect of the entity linked in the passage).
+     */
     @NotNull
-    private Map<String, Double> getAspectsForEntity(String entity, @NotNull Map<String, Double> psgRanking) {
-        Map<String, Double> aspectsForEntity = new HashMap<>();
+    private Map<String, Map<String, String>> makeLinkTable(@NotNull Map<String, Map<String, Double>> entityToParaMap) {
+        Map<String, Map<String, String>> linkTable = new HashMap<>();
+        Set<String> paraIds = new HashSet<>();
+
+        for (Map<String, Double> psgRanking : entityToParaMap.values()) {
+            paraIds.addAll(psgRanking.keySet());
+        }
 
-        for (String paraId : psgRanking.keySet()) {
-            double paraScore = psgRanking.get(paraId);
+        for (String paraId : paraIds) {
             try {
                 Document aspectDoc = LuceneHelper.searchIndex("Id", paraId, paraSearcher);
                 if (aspectDoc != null) {
@@ -103,10 +142,7 @@ public class SupportPsgAspectLinkPRF {
                                 JSONObject jsonObject = new JSONObject(aspectStr);
                                 String aspectId = jsonObject.getString("aspect");
                                 String entityId = jsonObject.getString("linkPageId");
-                                if (entity.equals(entityId)) {
-                                    aspectsForEntity.compute(aspectId, (t, oldV) -> (oldV == null) ? paraScore : oldV + paraScore);
-                                    break;
-                                }
+                                linkTable.computeIfAbsent(entityId, k -> new HashMap<>()).putIfAbsent(paraId, aspectId);
                             } catch (JSONException e) {
                                 e.printStackTrace();
                             }
@@ -117,7 +153,7 @@ public class SupportPsgAspectLinkPRF {
                 e.printStackTrace();
             }
         }
-        return aspectsForEntity;
+        return linkTable;
     }
     @NotNull
     private Set<String> makeRunFileStrings(String query, @NotNull Map<String, Double> scoreMap)  {
@@ -1,6 +1,9 @@
 package experiments;
 
+import help.IntDoubleHashMap;
 import help.LuceneHelper;
+import help.MultiSimilarityScorer;
+import help.OrdinalDictionary;
 import help.RAMIndex;
 import help.Utilities;
 import me.tongfei.progressbar.ProgressBar;
@@ -43,7 +46,11 @@ public class SupportPsgQE {
     private final boolean omitQueryTerms;
     private final int takeKTerms;
     private final Analyzer analyzer;
-    private final Similarity similarity;
+    private final List<Similarity> similarities;
+    private final OrdinalDictionary termDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap termWeights = new IntDoubleHashMap(4096);
+    private final int[] expansionTermOrds;
+    private final double[] expansionTermWeights;
 
 
     public SupportPsgQE(String paraIndex,
@@ -57,12 +64,40 @@ public class SupportPsgQE {
                         String analyzerStr,
                         String similarityStr) {
 
-        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, similarityStr);
-        this.catalogSearcher = LuceneHelper.createSearcher(catalogIndex, similarityStr);
+        this(paraIndex, catalogIndex, supportPassageRunFile, Collections.singletonList(outFile), stopWordsFile,
+                queryIdToNameMapFile, omitQueryTerms, takeKTerms, analyzerStr, Collections.singletonList(similarityStr));
+    }
+
+    /**
+     * Score the aspects under several similarities at once and write one run file per similarity.
+     * Everything up to the aspect index is shared, and the aspects are scored under all similarities from one
+     * pass over the term statistics of the index (see MultiSimilarityScorer).
+     * @param outFiles One run file per similarity, in the same order as similarityStrs.
+     * @param similarityStrs Similarities to score with (bm25|lmds|lmjm).
+     */
+
+    public SupportPsgQE(String paraIndex,
+                        String catalogIndex,
+                        String supportPassageRunFile,
+                        @NotNull List<String> outFiles,
+                        String stopWordsFile,
+                        @NotNull String queryIdToNameMapFile,
+                        boolean omitQueryTerms,
+                        int takeKTerms,
+                        String analyzerStr,
+                        @NotNull List<String> similarityStrs) {
+
+        this.paraSearcher = LuceneHelper.createSearcher(paraIndex, similarityStrs.get(0));
+        this.catalogSearcher = LuceneHelper.createSearcher(catalogIndex, similarityStrs.get(0));
         this.omitQueryTerms = omitQueryTerms;
         this.takeKTerms = takeKTerms;
+        this.expansionTermOrds = new int[Math.max(takeKTerms, 0)];
+        this.expansionTermWeights = new double[Math.max(takeKTerms, 0)];
         this.analyzer = LuceneHelper.getAnalyzer(analyzerStr, Arrays.asList("Id", "Name", "Text", "Entities"));
-        this.similarity = LuceneHelper.getSimilarity(similarityStr);
+        this.similarities = new ArrayList<>();
+        for (String similarityStr : similarityStrs) {
+            this.similarities.add(LuceneHelper.getSimilarity(similarityStr));
+        }
         String sep = queryIdToNameMapFile.contains("tsv") ? "tsv" : "csv";
 
 
@@ -72,56 +107,61 @@ public class SupportPsgQE {
         System.out.println("[Done].");
 
         System.out.print("Loading " + sep + " file....");
-        this.queryIdToNameMap = Utilities.readTsvOrCsvFile(queryIdToNameMapFile, sep);
+        this.queryIdToNameMap = Utilities.readDictionary(queryIdToNameMapFile, sep);
         System.out.println("[Done].");
 
         System.out.print("Loading stop words....");
         List<String> stopWords = Utilities.getStopWords(stopWordsFile);
         System.out.println("[Done].");
 
-        doTask(outFile, stopWords);
+        doTask(outFiles, stopWords);
     }
 
 
-    private void doTask(String runFile, List<String> stopWords) {
+    private void doTask(List<String> runFiles, List<String> stopWords) {
         Set<String> querySet = supportPassageMap.keySet();
-        Map<String, Double> entityScores;
+        List<Map<String, Double>> entityScores;
         Set<String> runFileStrings;
         ProgressBar pb = new ProgressBar("Progress",querySet.size());
 
         for (String query : querySet) {
             String queryStr = queryIdToNameMap.get(query);
             
-            // Re-rank entities for this query
+            // Re-rank entities for this query (one ranking per similarity)
             entityScores =  reRankEntities(queryStr, supportPassageMap.get(query), stopWords);
 
-            // Create run file strings and write to run file
-            runFileStrings = makeRunFileStrings(query, entityScores);
-            Utilities.writeFile(runFileStrings, runFile);
+            for (int i = 0; i < runFiles.size(); i++) {
+                // Create run file strings and write to run file
+                runFileStrings = makeRunFileStrings(query, entityScores.get(i));
+                Utilities.writeFile(runFileStrings, runFiles.get(i));
+            }
 
-            // Clear for next query
-            entityScores.clear();
-            runFileStrings.clear();
             pb.step();
         }
         pb.close();
     }
 
     @NotNull
-    private Map<String, Double> reRankEntities(String query,
-                                               @NotNull Map<String, Map<String, Double>> entityToParaMap,
-                                               List<String> stopWords) {
-        Map<String, Double> entitySores = new HashMap<>();
+    private List<Map<String, Double>> reRankEntities(String query,
+                                                     @NotNull Map<String, Map<String, Double>> entityToParaMap,
+                                                     List<String> stopWords) {
+        List<Map<String, Double>> entitySores = new ArrayList<>();
+        for (int i = 0; i < similarities.size(); i++) {
+            entitySores.add(new HashMap<>());
+        }
         
         for (String entity: entityToParaMap.keySet()) {
-            double score = scoreEntity(query, entity, entityToParaMap.get(entity), stopWords);
-            entitySores.put(entity, score);
+            double[] scores = scoreEntity(query, entity, entityToParaMap.get(entity), stopWords);
+            for (int i = 0; i < scores.length; i++) {
+                entitySores.get(i).put(entity, scores[i]);
+            }
         }
         return entitySores;
     }
 
-    private double scoreEntity(String query, String entity, Map<String, Double> psgRanking,
-                               List<String> stopWords) {
+    @NotNull
+    private double[] scoreEntity(String query, String entity, Map<String, Double> psgRanking,
+                                 List<String> stopWords) {
 
         // Get the aspects of the entity
         Set<String> aspectsForEntity = getAspectsForEntity(entity, psgRanking);
@@ -130,11 +170,15 @@ public class SupportPsgQE {
         // Expansion terms derived from support passage ranking for the query and entity
         BooleanQuery booleanQuery = toBooleanQuery(query, new ArrayList<>(psgRanking.entrySet()), stopWords);
 
-        // Rank the aspects using the expanded query
-        Map<String, Double> aspectScoresForEntity = scoreAspects(booleanQuery, aspectToLuceneDoc(aspectsForEntity));
+        // Rank the aspects using the expanded query (one ranking per similarity)
+        List<Map<String, Double>> aspectScoresForEntity = scoreAspects(booleanQuery, aspectToLuceneDoc(aspectsForEntity));
 
         // Score of entity = Sum of scores of its aspects
-        return aspectScoresForEntity.values().stream().mapToDouble(Double::valueOf).sum();
+        double[] scores = new double[aspectScoresForEntity.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = aspectScoresForEntity.get(i).values().stream().mapToDouble(Double::valueOf).sum();
+        }
+        return scores;
     }
 
     @NotNull
@@ -169,14 +213,13 @@ public class SupportPsgQE {
     private BooleanQuery toBooleanQuery(String query, List<Map.Entry<String, Double>> topKDocs,
                                         List<String> stopWords) {
 
-        Map<String, Double> termDist = getTermDistribution(topKDocs, stopWords);
+        getTermDistribution(topKDocs, stopWords);
+        int numTerms = termWeights.topK(takeKTerms, expansionTermOrds, expansionTermWeights);
         // Convert the query to an expanded BooleanQuery
         BooleanQuery booleanQuery = null;
-        List<Map.Entry<String, Double>> allWordFreqList = new ArrayList<>(termDist.entrySet());
-        List<Map.Entry<String, Double>> expansionTerms = allWordFreqList.subList(0,
-                Math.min(takeKTerms, allWordFreqList.size()));
         try {
-            booleanQuery = Utilities.toRm3Query(query, expansionTerms, omitQueryTerms, "Text", analyzer);
+            booleanQuery = Utilities.toRm3Query(query, expansionTermOrds, expansionTermWeights, numTerms,
+                    termDictionary, omitQueryTerms, "Text", analyzer);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -186,10 +229,16 @@ public class SupportPsgQE {
 
     }
 
-    @NotNull
-    private Map<String, Double> getTermDistribution(@NotNull List<Map.Entry<String, Double>> topKDocs,
-                                                    List<String> stopWords) {
-        Map<String, Double> freqDist = new HashMap<>();
+    /**
+     * Compute the relevance model over the feedback passages into termWeights.
+     * Terms are accumulated by ordinal so that no boxed Double is created per token.
+     * @param topKDocs Feedback passages with their scores.
+     * @param stopWords Stop words to remove.
+     */
+
+    private void getTermDistribution(@NotNull List<Map.Entry<String, Double>> topKDocs,
+                                     List<String> stopWords) {
+        termWeights.clear();
 
         // compute score normalizer
         float normalizer = 0.0f;
@@ -201,24 +250,22 @@ public class SupportPsgQE {
             double weight = entry.getValue() / normalizer;
             String processedDocText = getProcessedDocText(entry.getKey(), stopWords);
             try {
-                addTokens(processedDocText, weight, freqDist);
+                addTokens(processedDocText, weight);
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
         }
-
-        return Utilities.sortByValueDescending(freqDist);
     }
     private  void addTokens(String content,
-                            double weight,
-                            Map<String,Double> wordFreq) throws IOException {
+                            double weight) throws IOException {
 
         TokenStream tokenStream = analyzer.tokenStream("Text", new StringReader(content));
+        CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
         tokenStream.reset();
         while (tokenStream.incrementToken()) {
-            final String token = tokenStream.getAttribute(CharTermAttribute.class).toString();
-            wordFreq.compute(token, (t, oldV) -> (oldV == null) ? weight : oldV + weight);
+            int termOrd = termDictionary.ordinal(termAttribute.buffer(), termAttribute.length());
+            termWeights.addTo(termOrd, weight);
         }
         tokenStream.end();
         tokenStream.close();
@@ -279,8 +326,8 @@ public class SupportPsgQE {
     }
 
     @NotNull
-    private Map<String, Double> scoreAspects(BooleanQuery booleanQuery, List<Document> aspectList) {
-        Map<String, Double> aspectScores;
+    private List<Map<String, Double>> scoreAspects(BooleanQuery booleanQuery, List<Document> aspectList) {
+        List<Map<String, Double>> aspectScores = new ArrayList<>();
         // Build the index of aspects
         // First create the IndexWriter
         IndexWriter iw = RAMIndex.createWriter(analyzer);
@@ -296,14 +343,26 @@ public class SupportPsgQE {
 
         IndexSearcher is = null;
         try {
-            is = RAMIndex.createSearcher(similarity, iw);
+            is = RAMIndex.createSearcher(similarities.get(0), iw);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         // Now search the query
         assert is != null;
-        aspectScores = Utilities.sortByValueDescending(RAMIndex.searchIndex(booleanQuery, 1000, is));
+        if (similarities.size() == 1) {
+            aspectScores.add(Utilities.sortByValueDescending(RAMIndex.searchIndex(booleanQuery, 1000, is)));
+        } else {
+            // Score under all similarities from one pass over the postings
+            try {
+                aspectScores = MultiSimilarityScorer.searchIndex(booleanQuery, 1000, is, similarities);
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (int i = 0; i < similarities.size(); i++) {
+                    aspectScores.add(new HashMap<>());
+                }
+            }
+        }
         return aspectScores;
     }
 
@@ -0,0 +1,141 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Read several run files together one query at a time.
+ * Every run file must be sorted by query id (e.g. LC_ALL=C sort -s -k1,1 run > run.sorted). A queue orders the runs
+ * on their current query; next() moves to the smallest query id and collects the ranking of every run positioned on
+ * it, then advances those runs. Only one query per run is held in memory.
+ *
+ * Usage:
+ *   while (reader.next()) { reader.getQueryId(); reader.getRankings(); }
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class AlignedRunReader implements Closeable {
+    private final List<File> files;
+    private final List<RunFileReader> runs = new ArrayList<>();
+    private final PriorityQueue<Integer> queue;
+    private String queryId = null;
+    private List<LinkedHashMap<String, Double>> rankings = null;
+    private List<List<String>> documents = null;
+
+    /**
+     * @param files Run files, each sorted by query id.
+     */
+    public AlignedRunReader(@NotNull List<File> files) throws IOException {
+        this.files = files;
+        this.queue = new PriorityQueue<>(Math.max(1, files.size()),
+                Comparator.comparing((Integer i) -> runs.get(i).getQueryId()).thenComparing(i -> i));
+        try {
+            for (File file : files) {
+                RunFileReader run = new RunFileReader(file.getPath());
+                runs.add(run);
+                if (run.next()) {
+                    queue.add(runs.size() - 1);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * The files of a run directory, in name order.
+     * @param runDir Directory of run files.
+     * @return List of files
+     */
+    @NotNull
+    public static List<File> listRunFiles(String runDir) {
+        File[] files = new File(runDir).listFiles(File::isFile);
+        assert files != null;
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Move to the next query found in any of the runs.
+     * @return False if all runs are exhausted.
+     */
+    public boolean next() throws IOException {
+        if (queue.isEmpty()) {
+            queryId = null;
+            rankings = null;
+            documents = null;
+            return false;
+        }
+        queryId = runs.get(queue.peek()).getQueryId();
+        rankings = new ArrayList<>(Collections.nCopies(runs.size(), (LinkedHashMap<String, Double>) null));
+        documents = new ArrayList<>(Collections.nCopies(runs.size(), (List<String>) null));
+        while (!queue.isEmpty() && runs.get(queue.peek()).getQueryId().equals(queryId)) {
+            int i = queue.poll();
+            RunFileReader run = runs.get(i);
+            rankings.set(i, run.getRanking());
+            documents.set(i, run.getDocuments());
+            if (run.next()) {
+                if (run.getQueryId().compareTo(queryId) < 0) {
+                    throw new IllegalStateException("Run file " + files.get(i) + " is not sorted by query id: "
+                            + run.getQueryId() + " comes after " + queryId);
+                }
+                queue.add(i);
+            }
+        }
+        return true;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Rankings of the current query, one per run in the order of the files; null for a run without the query.
+     * A new list is made for every query, so it can be handed to another thread.
+     */
+    @NotNull
+    public List<LinkedHashMap<String, Double>> getRankings() {
+        if (rankings == null) {
+            throw new IllegalStateException("No current query");
+        }
+        return rankings;
+    }
+
+    /**
+     * Documents of the current query, one list per run in the order of the files; null for a run without the query.
+     * Each list has one entry per line of the run (see RunFileReader.getDocuments()).
+     */
+    @NotNull
+    public List<List<String>> getDocuments() {
+        if (documents == null) {
+            throw new IllegalStateException("No current query");
+        }
+        return documents;
+    }
+
+    public int numRuns() {
+        return runs.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (RunFileReader run : runs) {
+            try {
+                run.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package help;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entity-centric lookups on the aspect-linked paragraph index.
+ * The "EntityId" field written by IndexAspectLinkedCarCorpus holds, for every entity, the postings of the paragraphs
+ * linking to it, with the linked aspect as the payload of each position.
+ * All passages linking to an entity, grouped by aspect, are therefore found with one postings read per segment,
+ * without fetching or parsing any document.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class AspectLinkPostings {
+    public static final String FIELD = "EntityId";
+    private final IndexSearcher searcher;
+
+    public AspectLinkPostings(@NotNull IndexSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * Get the paragraphs linking to the entity, grouped by the linked aspect.
+     * A paragraph linking more than once to the same aspect is listed once for it.
+     * Links which do not point to a section are grouped under the empty aspect "".
+     * @param entityId Id of the entity.
+     * @return Map where Key = Aspect and Value = DocIDs of the paragraphs (in the searcher) in increasing order.
+     */
+    @NotNull
+    public Map<String, List<Integer>> getAspectToParas(String entityId) throws IOException {
+        Map<String, List<Integer>> aspectToParas = new LinkedHashMap<>();
+        BytesRef term = new BytesRef(entityId);
+
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            Terms terms = context.reader().terms(FIELD);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            if (!termsEnum.seekExact(term)) {
+                continue;
+            }
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+            Bits liveDocs = context.reader().getLiveDocs();
+
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                int globalDoc = context.docBase + doc;
+                for (int i = 0; i < postings.freq(); i++) {
+                    postings.nextPosition();
+                    BytesRef payload = postings.getPayload();
+                    String aspectId = payload == null ? "" : payload.utf8ToString();
+                    List<Integer> paras = aspectToParas.computeIfAbsent(aspectId, k -> new ArrayList<>());
+                    if (paras.isEmpty() || paras.get(paras.size() - 1) != globalDoc) {
+                        paras.add(globalDoc);
+                    }
+                }
+            }
+        }
+        return aspectToParas;
+    }
+
+    /**
+     * Same as above but the paragraphs are given by their Id.
+     * @param entityId Id of the entity.
+     * @return Map where Key = Aspect and Value = Ids of the paragraphs.
+     */
+    @NotNull
+    public Map<String, List<String>> getAspectToParaIds(String entityId) throws IOException {
+        Map<String, List<String>> aspectToParaIds = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : getAspectToParas(entityId).entrySet()) {
+            List<String> paraIds = new ArrayList<>();
+            for (int doc : entry.getValue()) {
+                paraIds.add(searcher.doc(doc).get("Id"));
+            }
+            aspectToParaIds.put(entry.getKey(), paraIds);
+        }
+        return aspectToParaIds;
+    }
+
+    /**
+     * Number of paragraphs linking to the entity.
+     * @param entityId Id of the entity.
+     */
+    public int docFreq(String entityId) throws IOException {
+        return searcher.getIndexReader().docFreq(new Term(FIELD, entityId));
+    }
+
+    public static void main(@NotNull String[] args) {
+        String paraIndex = args[0];
+        String entityId = args[1];
+        AspectLinkPostings postings = new AspectLinkPostings(LuceneHelper.createSearcher(paraIndex, "bm25"));
+        try {
+            Map<String, List<String>> aspectToParaIds = postings.getAspectToParaIds(entityId);
+            for (String aspectId : aspectToParaIds.keySet()) {
+                System.out.println(aspectId + "\t" + String.join(" ", aspectToParaIds.get(aspectId)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
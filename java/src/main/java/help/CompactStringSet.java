@@ -0,0 +1,186 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A thread-safe set of strings, compact enough to hold every id of a large stream (for example the aspect ids of
+ * the catalog).
+ * Each string is kept once as length-prefixed UTF-8 in a byte pool, next to a 64-bit fingerprint of it. A lookup
+ * compares fingerprints first and only reads the bytes of an entry whose fingerprint matches, so the set is exact:
+ * two different strings with the same fingerprint are both kept.
+ * The entries are spread over several stripes, each with its own lock, so threads adding different strings rarely
+ * wait for each other.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class CompactStringSet {
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    public CompactStringSet() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param minStripes Least number of stripes; rounded up to a power of two.
+     */
+    public CompactStringSet(int minStripes) {
+        int numStripes = 1;
+        while (numStripes < minStripes) {
+            numStripes <<= 1;
+        }
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = numStripes - 1;
+    }
+
+    /**
+     * Add the string to the set.
+     * @param s String
+     * @return True if the string was not already in the set.
+     */
+    public boolean add(@NotNull String s) {
+        long fingerprint = fingerprint(s);
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        // The stripe uses the high bits, the slot within the stripe mixes the whole fingerprint
+        Stripe stripe = stripes[(int) (fingerprint >>> 40) & stripeMask];
+        synchronized (stripe) {
+            return stripe.add(fingerprint, bytes);
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a of the characters of the string, with a final avalanche so that all bits depend on all chars.
+     */
+    public static long fingerprint(@NotNull String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * An open-addressing table of (fingerprint, offset of the string in the pool).
+     */
+    private static class Stripe {
+        private static final int EMPTY = -1;
+
+        private long[] fingerprints;
+        private int[] offsets;
+        private int size = 0;
+        private int mask;
+        private byte[] pool = new byte[1 << 12];
+        private int poolSize = 0;
+
+        Stripe() {
+            allocate(1024);
+        }
+
+        boolean add(long fingerprint, @NotNull byte[] bytes) {
+            int slot = mix(fingerprint) & mask;
+            int offset;
+            while ((offset = offsets[slot]) != EMPTY) {
+                if (fingerprints[slot] == fingerprint && matches(offset, bytes)) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            fingerprints[slot] = fingerprint;
+            offsets[slot] = append(bytes);
+            if (++size > (offsets.length >> 1)) {
+                rehash();
+            }
+            return true;
+        }
+
+        private boolean matches(int offset, @NotNull byte[] bytes) {
+            int length = readInt(offset);
+            if (length != bytes.length) {
+                return false;
+            }
+            int start = offset + 4;
+            for (int i = 0; i < length; i++) {
+                if (pool[start + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int append(@NotNull byte[] bytes) {
+            long needed = (long) poolSize + 4 + bytes.length;
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Stripe is full; use more stripes");
+            }
+            if (needed > pool.length) {
+                pool = Arrays.copyOf(pool, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * pool.length)));
+            }
+            int offset = poolSize;
+            pool[offset] = (byte) (bytes.length >>> 24);
+            pool[offset + 1] = (byte) (bytes.length >>> 16);
+            pool[offset + 2] = (byte) (bytes.length >>> 8);
+            pool[offset + 3] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, pool, offset + 4, bytes.length);
+            poolSize = (int) needed;
+            return offset;
+        }
+
+        private int readInt(int offset) {
+            return ((pool[offset] & 0xFF) << 24) | ((pool[offset + 1] & 0xFF) << 16)
+                    | ((pool[offset + 2] & 0xFF) << 8) | (pool[offset + 3] & 0xFF);
+        }
+
+        private void rehash() {
+            long[] oldFingerprints = fingerprints;
+            int[] oldOffsets = offsets;
+            allocate(oldOffsets.length << 1);
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (oldOffsets[i] != EMPTY) {
+                    // Entries are distinct, so only an empty slot is needed
+                    int slot = mix(oldFingerprints[i]) & mask;
+                    while (offsets[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    fingerprints[slot] = oldFingerprints[i];
+                    offsets[slot] = oldOffsets[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            fingerprints = new long[capacity];
+            offsets = new int[capacity];
+            Arrays.fill(offsets, EMPTY);
+            mask = capacity - 1;
+        }
+
+        private static int mix(long fingerprint) {
+            long h = fingerprint * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -1,18 +1,22 @@
 package help;
 
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Creates an association file for ENT-RankLips.
+ * The entities of a paragraph are looked up once and cached, however many queries and runs retrieve it.
+ * Queries are processed in parallel and their lines are written as soon as they are ready.
  *
  * @version 2/2/2021
  * @author Shubham Chatterjee
@@ -20,71 +24,118 @@ import java.util.*;
 
 public class CreateAssociationFile {
     private final IndexSearcher paraSearcher;
+    private final int numThreads;
+    // Entities linked in every paragraph looked up so far, shared by all queries and runs
+    private final Map<String, String[]> paraEntityCache = new ConcurrentHashMap<>();
+    private final ThreadLocal<JSONParser> parsers = ThreadLocal.withInitial(JSONParser::new);
 
 
     public CreateAssociationFile(String indexDir, Set<String> passageRunFiles, String outFile) {
+        this(indexDir, passageRunFiles, outFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param numThreads Number of queries processed at the same time.
+     */
+    public CreateAssociationFile(String indexDir, Set<String> passageRunFiles, String outFile, int numThreads) {
         paraSearcher = LuceneHelper.createSearcher(indexDir, "bm25");
+        this.numThreads = Math.max(1, numThreads);
 
         System.out.println("Creating map...");
-        Map<String, Map<String, Set<String>>> entityToPassageMap = createPassagePool(passageRunFiles);
+        Map<String, Set<String>> queryToPassageMap = createPassagePool(passageRunFiles);
 
         System.out.println("Writing to file...");
-        Set<String> fileStrings = toFileStrings(entityToPassageMap);
-        Utilities.writeFile(fileStrings, outFile);
-        System.out.println("File written to: " + outFile);
+        doTask(queryToPassageMap, outFile);
+        System.out.println("Paragraphs looked up: " + paraEntityCache.size());
+    }
+
+    /**
+     * Make the association lines of the queries in parallel and write them query by query.
+     * The lines of a query are written as soon as the query (and all queries before it) are done, so at most a window
+     * of 2 * numThreads queries is held in memory.
+     * @param queryToPassageMap Map where Key = Query and Value = Passages retrieved for the query by any run.
+     * @param outFile File to write to.
+     */
+    private void doTask(@NotNull Map<String, Set<String>> queryToPassageMap, String outFile) {
+        ProgressBar pb = new ProgressBar("Progress", queryToPassageMap.size());
+        OrderedExecutor executor = new OrderedExecutor(numThreads);
+
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outFile, true))) {
+            executor.run(queryToPassageMap.entrySet().iterator(), Map.Entry::getKey,
+                    query -> toFileStrings(query.getKey(), query.getValue()), out::write, pb::step);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        pb.close();
+        executor.report("File", outFile);
     }
 
+    /**
+     * Make the association lines of a query: one line for every (entity, passage) pair where the passage links to the
+     * entity.
+     * @param query Query
+     * @param passages Passages retrieved for the query.
+     * @return The lines, each ending with a newline.
+     */
     @NotNull
-    private Set<String> toFileStrings(@NotNull Map<String, Map<String, Set<String>>> entityToPassageMap) {
-        Set<String> fileStrings = new LinkedHashSet<>();
-
-        for (String query : entityToPassageMap.keySet()) {
-            JSONObject queryObject = new JSONObject();
-            queryObject.put("query", query);
-            queryObject.put("score", 1);
-            queryObject.put("rank", 1);
-            Map<String, Set<String>> entityMap = entityToPassageMap.get(query);
-            for (String entity : entityMap.keySet()) {
-                JSONObject docObject = new JSONObject();
-                docObject.put("entity", entity);
-                Set<String> psgSet = entityMap.get(entity);
-                for (String passage : psgSet) {
-                    docObject.put("paragraph", passage);
-                    queryObject.put("document", docObject);
-                    fileStrings.add(queryObject.toJSONString());
-                }
+    private String toFileStrings(String query, @NotNull Set<String> passages) {
+        Map<String, Set<String>> entityMap = new LinkedHashMap<>();
+        for (String paraId : passages) {
+            for (String entity : getParaEntities(paraId)) {
+                entityMap.computeIfAbsent(entity, k -> new LinkedHashSet<>()).add(paraId);
             }
         }
-        return fileStrings;
+
+        StringBuilder fileStrings = new StringBuilder();
+        JSONObject queryObject = new JSONObject();
+        queryObject.put("query", query);
+        queryObject.put("score", 1);
+        queryObject.put("rank", 1);
+        for (String entity : entityMap.keySet()) {
+            JSONObject docObject = new JSONObject();
+            docObject.put("entity", entity);
+            Set<String> psgSet = entityMap.get(entity);
+            for (String passage : psgSet) {
+                docObject.put("paragraph", passage);
+                queryObject.put("document", docObject);
+                fileStrings.append(queryObject.toJSONString()).append('\n');
+            }
+        }
+        return fileStrings.toString();
     }
 
 
+    /**
+     * Read the passages of every query from the run files.
+     * Only the ids are kept; the entities are looked up later, query by query.
+     * @return Map where Key = Query and Value = Passages retrieved for the query by any run.
+     */
     @NotNull
-    private Map<String, Map<String, Set<String>>> createPassagePool(@NotNull Set<String> passageRunFiles) {
+    private Map<String, Set<String>> createPassagePool(@NotNull Set<String> passageRunFiles) {
 
-        Map<String, Map<String, Set<String>>> entityToPassageMap = new HashMap<>();
+        Map<String, Set<String>> queryToPassageMap = new LinkedHashMap<>();
 
         for (String run : passageRunFiles) {
             System.out.println("File: " + run);
-            getPassages(run, entityToPassageMap);
+            getPassages(run, queryToPassageMap);
             System.out.println("[Done].");
         }
 
-        return entityToPassageMap;
+        return queryToPassageMap;
     }
 
 
-    private void getPassages(String run, Map<String, Map<String, Set<String>>> entityToPassageMap)  {
+    private void getPassages(String run, Map<String, Set<String>> queryToPassageMap)  {
         String line;
         BufferedReader br = null;
 
         try {
             br = new BufferedReader(new FileReader(run));
             while((line = br.readLine()) != null) {
-                String queryId = line.split(" ")[0];
-                String paraId = line.split(" ")[2];
-                Set<String> psgEntitySet = getParaEntities(paraId);
-                createEntityToPassageMap(queryId, paraId, psgEntitySet, entityToPassageMap);
+                String[] fields = line.split(" ");
+                String queryId = fields[0];
+                String paraId = fields[2];
+                queryToPassageMap.computeIfAbsent(queryId, k -> new LinkedHashSet<>()).add(paraId);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -101,37 +152,45 @@ public class CreateAssociationFile {
         }
     }
 
-    private void createEntityToPassageMap(String queryId, String paraId,
-                                          @NotNull Set<String> psgEntitySet,
-                                          @NotNull Map<String, Map<String, Set<String>>> entityToPassageMap) {
-
-        Map<String, Set<String>> entityMap;
-        if (entityToPassageMap.containsKey(queryId)) {
-            entityMap = entityToPassageMap.get(queryId);
-        } else {
-            entityMap = new HashMap<>();
-        }
-
-        for (String entity : psgEntitySet) {
-            Set<String> psgSet;
-
-            if (entityMap.containsKey(entity)) {
-                psgSet = entityMap.get(entity);
-            } else {
-                psgSet = new HashSet<>();
+    /**
+     * Get the entities linked in a paragraph.
+     * A paragraph is looked up in the index and its links parsed only the first time it is seen.
+     * A lookup which fails is not cached, so the paragraph is looked up again the next time.
+     * @param paraId Paragraph
+     * @return Entities, without repetitions.
+     */
+    @NotNull
+    private String[] getParaEntities(String paraId) {
+        String[] entities = paraEntityCache.get(paraId);
+        if (entities == null) {
+            // Two threads may look up the same paragraph at the same time; both get the same answer
+            entities = lookupParaEntities(paraId);
+            if (entities == null) {
+                return new String[0];
+            }
+            String[] previous = paraEntityCache.putIfAbsent(paraId, entities);
+            if (previous != null) {
+                entities = previous;
             }
-            psgSet.add(paraId);
-            entityMap.put(entity, psgSet);
-            entityToPassageMap.put(queryId, entityMap);
         }
+        return entities;
     }
 
-    @NotNull
-    private Set<String> getParaEntities(String paraId) {
-        Set<String> entitySet = new HashSet<>();
-        JSONParser parser = new JSONParser();
+    /**
+     * Look up the entities linked in a paragraph in the index.
+     * @return Entities, or null if the index could not be searched.
+     */
+    @Nullable
+    private String[] lookupParaEntities(String paraId) {
+        Set<String> entitySet = new LinkedHashSet<>();
+        JSONParser parser = parsers.get();
         try {
-            String[] aspectsInPsg = Objects.requireNonNull(LuceneHelper.searchIndex("Id", paraId, paraSearcher)).get("Entities").split("\n");
+            Document doc = LuceneHelper.searchIndex("Id", paraId, paraSearcher);
+            if (doc == null) {
+                System.err.println("Paragraph not found in index: " + paraId);
+                return new String[0];
+            }
+            String[] aspectsInPsg = doc.get("Entities").split("\n");
             for (String aspectStr : aspectsInPsg) {
                 if (! aspectStr.isEmpty()) {
                     try {
@@ -146,8 +205,9 @@ public class CreateAssociationFile {
             }
         } catch (IOException | ParseException e) {
             e.printStackTrace();
+            return null;
         }
-        return entitySet;
+        return entitySet.toArray(new String[0]);
     }
 
     public static void main(@NotNull String[] args) {
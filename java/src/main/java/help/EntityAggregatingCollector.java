@@ -0,0 +1,219 @@
+package help;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A Collector which sums the scores of the matching aspects into their entities while searching.
+ * The entity of an aspect is read from a SortedDocValues field of the index (see IndexCatalog), and the
+ * entities are identified by their global ordinal in that field, so no stored document is ever loaded.
+ * The global ordinals are computed once when the collector is created and the collector can be reused from
+ * query to query.
+ *
+ * If topNAspects > 0 only the best topNAspects aspects (ties broken by docID, as in TopDocs) are summed, which
+ * gives the same entity scores as summing over searcher.search(query, topNAspects).
+ * Otherwise every matching aspect is summed.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class EntityAggregatingCollector extends SimpleCollector {
+    private final String field;
+    private final List<LeafReaderContext> leaves;
+    private final OrdinalMap ordinalMap;
+    private final int topNAspects;
+    private final IntDoubleHashMap entityScores = new IntDoubleHashMap(1024);
+
+    // Heap of the best aspects so far; the root is the worst of them
+    private final float[] heapScores;
+    private final int[] heapDocs;
+    private final int[] heapEntities;
+    private int heapSize = 0;
+
+    private Scorable scorer;
+    private SortedDocValues entityIds;
+    private LongValues toGlobalOrd;
+    private int docBase;
+
+    /**
+     * @param reader IndexReader of the searcher the collector is used with.
+     * @param field SortedDocValues field holding the entity of each document.
+     * @param topNAspects Number of best aspects to sum, or 0 to sum all matching aspects.
+     */
+    public EntityAggregatingCollector(@NotNull IndexReader reader, String field, int topNAspects) throws IOException {
+        this.field = field;
+        this.leaves = reader.leaves();
+        this.topNAspects = topNAspects;
+        this.heapScores = new float[Math.max(topNAspects, 0)];
+        this.heapDocs = new int[heapScores.length];
+        this.heapEntities = new int[heapScores.length];
+
+        SortedDocValues[] values = new SortedDocValues[leaves.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = DocValues.getSorted(leaves.get(i).reader(), field);
+        }
+        this.ordinalMap = OrdinalMap.build(null, values, PackedInts.DEFAULT);
+    }
+
+    /**
+     * Forget the previous query.
+     */
+    public void reset() {
+        entityScores.clear();
+        heapSize = 0;
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        // With a bounded number of aspects, documents that cannot enter the heap may be skipped
+        return topNAspects > 0 ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+    }
+
+    @Override
+    protected void doSetNextReader(@NotNull LeafReaderContext context) throws IOException {
+        entityIds = DocValues.getSorted(context.reader(), field);
+        toGlobalOrd = ordinalMap.getGlobalOrds(context.ord);
+        docBase = context.docBase;
+    }
+
+    @Override
+    public void setScorer(Scorable scorer) throws IOException {
+        this.scorer = scorer;
+        if (topNAspects > 0 && heapSize == topNAspects) {
+            updateMinCompetitiveScore();
+        }
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        // An aspect without an entity still takes its place among the top aspects, as in TopDocs
+        int entity = entityIds.advanceExact(doc) ? (int) toGlobalOrd.get(entityIds.ordValue()) : -1;
+        float score = scorer.score();
+
+        if (topNAspects <= 0) {
+            if (entity >= 0) {
+                entityScores.addTo(entity, score);
+            }
+        } else if (heapSize < topNAspects) {
+            heapScores[heapSize] = score;
+            heapDocs[heapSize] = docBase + doc;
+            heapEntities[heapSize] = entity;
+            siftUp(heapSize++);
+            if (heapSize == topNAspects) {
+                updateMinCompetitiveScore();
+            }
+        } else if (score > heapScores[0]) {
+            // Documents arrive in increasing docID order, so a tie with the root never wins
+            heapScores[0] = score;
+            heapDocs[0] = docBase + doc;
+            heapEntities[0] = entity;
+            siftDown(0, heapSize);
+            updateMinCompetitiveScore();
+        }
+    }
+
+    /**
+     * Get the entity scores of the last query.
+     * @return LinkedHashMap where Key = Entity and Value = Score, sorted by descending score
+     * (ties broken by entity id).
+     */
+    @NotNull
+    public LinkedHashMap<String, Double> getEntityScores() throws IOException {
+        if (topNAspects > 0) {
+            sumHeap();
+        }
+        int[] ords = new int[entityScores.size()];
+        double[] scores = new double[ords.length];
+        int n = entityScores.topK(ords.length, ords, scores);
+
+        SortedDocValues[] lookups = new SortedDocValues[leaves.size()];
+        LinkedHashMap<String, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            int segment = ordinalMap.getFirstSegmentNumber(ords[i]);
+            if (lookups[segment] == null) {
+                lookups[segment] = DocValues.getSorted(leaves.get(segment).reader(), field);
+            }
+            int segmentOrd = (int) ordinalMap.getFirstSegmentOrd(ords[i]);
+            result.put(lookups[segment].lookupOrd(segmentOrd).utf8ToString(), scores[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Sum the aspects in the heap into their entities, best aspect first as when summing over TopDocs.
+     */
+    private void sumHeap() {
+        for (int end = heapSize - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        for (int i = 0; i < heapSize; i++) {
+            if (heapEntities[i] >= 0) {
+                entityScores.addTo(heapEntities[i], heapScores[i]);
+            }
+        }
+        heapSize = 0;
+    }
+
+    private void updateMinCompetitiveScore() throws IOException {
+        if (scorer != null) {
+            scorer.setMinCompetitiveScore(Math.nextUp(heapScores[0]));
+        }
+    }
+
+    /**
+     * True if aspect i ranks below aspect j.
+     */
+    private boolean worse(int i, int j) {
+        return heapScores[i] < heapScores[j] || (heapScores[i] == heapScores[j] && heapDocs[i] > heapDocs[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= n) {
+                break;
+            }
+            int right = left + 1;
+            int worst = (right < n && worse(right, left)) ? right : left;
+            if (!worse(worst, i)) {
+                break;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        float s = heapScores[i];
+        heapScores[i] = heapScores[j];
+        heapScores[j] = s;
+        int d = heapDocs[i];
+        heapDocs[i] = heapDocs[j];
+        heapDocs[j] = d;
+        int e = heapEntities[i];
+        heapEntities[i] = heapEntities[j];
+        heapEntities[j] = e;
+    }
+}
@@ -0,0 +1,279 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Sort a text file which does not fit in memory.
+ * The lines are read in chunks of at most maxLinesInMemory lines; every chunk is sorted and written to a spill file.
+ * The spill files are then read back together with a k-way merge, which only keeps one line per spill file in memory.
+ * At most maxFanIn spill files are open at a time: if there are more, consecutive groups of them are first merged
+ * into larger spill files, in as many passes as needed.
+ * The sort is stable: lines which compare equal come out in the order in which they were read.
+ *
+ * Usage:
+ *   ExternalSort sorter = new ExternalSort(ExternalSort.byFields(1), 1000000, null);
+ *   try (ExternalSort.MergedLines lines = sorter.merge(sorter.spill(inFile, null))) { ... }
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class ExternalSort {
+    public static final int DEFAULT_MAX_FAN_IN = 256;
+
+    private final Comparator<String> comparator;
+    private final int maxLinesInMemory;
+    private final File tmpDir;
+    private final int maxFanIn;
+
+    /**
+     * @param comparator Order of the lines.
+     * @param maxLinesInMemory Number of lines sorted in memory at a time (the size of a spill file).
+     * @param tmpDir Directory of the spill files, or null for the default temporary directory.
+     */
+    public ExternalSort(@NotNull Comparator<String> comparator, int maxLinesInMemory, @Nullable File tmpDir) {
+        this(comparator, maxLinesInMemory, tmpDir, DEFAULT_MAX_FAN_IN);
+    }
+
+    /**
+     * @param maxFanIn Largest number of spill files merged (and so open) at a time; at least 2.
+     */
+    public ExternalSort(@NotNull Comparator<String> comparator, int maxLinesInMemory, @Nullable File tmpDir,
+                        int maxFanIn) {
+        this.comparator = comparator;
+        this.maxLinesInMemory = Math.max(1, maxLinesInMemory);
+        this.tmpDir = tmpDir;
+        this.maxFanIn = Math.max(2, maxFanIn);
+    }
+
+    /**
+     * Order lines on their first n space separated fields, compared as strings.
+     * This is the order of a run file sorted with LC_ALL=C sort -s -k1,n (for ids in the basic multilingual plane).
+     * @param n Number of fields
+     * @return Comparator
+     */
+    @NotNull
+    public static Comparator<String> byFields(int n) {
+        return (a, b) -> {
+            int endA = keyEnd(a, n);
+            int endB = keyEnd(b, n);
+            int len = Math.min(endA, endB);
+            for (int i = 0; i < len; i++) {
+                char ca = a.charAt(i);
+                char cb = b.charAt(i);
+                if (ca != cb) {
+                    // The field separator sorts before any other character, so "q1 x" < "q10 x"
+                    return (ca == ' ' ? 0 : ca + 1) - (cb == ' ' ? 0 : cb + 1);
+                }
+            }
+            return endA - endB;
+        };
+    }
+
+    private static int keyEnd(@NotNull String line, int n) {
+        int end = -1;
+        for (int i = 0; i < n; i++) {
+            end = line.indexOf(' ', end + 1);
+            if (end < 0) {
+                return line.length();
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Read a file and write it out as sorted spill files.
+     * @param inFile File to sort.
+     * @param transform Applied to every line before sorting (null to keep the lines as they are); a line mapped to
+     *                  null is dropped.
+     * @return The spill files, in the order in which they were written.
+     */
+    @NotNull
+    public List<File> spill(String inFile, @Nullable Function<String, String> transform) throws IOException {
+        List<File> spillFiles = new ArrayList<>();
+        List<String> chunk = new ArrayList<>(Math.min(maxLinesInMemory, 1 << 16));
+        try (BufferedReader in = new BufferedReader(new FileReader(inFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String s = transform == null ? line : transform.apply(line);
+                if (s != null) {
+                    chunk.add(s);
+                    if (chunk.size() == maxLinesInMemory) {
+                        spillFiles.add(writeChunk(chunk));
+                        chunk.clear();
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                spillFiles.add(writeChunk(chunk));
+            }
+        } catch (IOException e) {
+            delete(spillFiles);
+            throw e;
+        }
+        return spillFiles;
+    }
+
+    @NotNull
+    private File writeChunk(@NotNull List<String> chunk) throws IOException {
+        // List.sort is a stable merge sort
+        chunk.sort(comparator);
+        return writeSpill(chunk.iterator());
+    }
+
+    @NotNull
+    private File writeSpill(@NotNull Iterator<String> lines) throws IOException {
+        File file = File.createTempFile("sort", ".spill", tmpDir);
+        file.deleteOnExit();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            while (lines.hasNext()) {
+                out.write(lines.next());
+                out.newLine();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            delete(Collections.singletonList(file));
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Merge spill files written by spill().
+     * If there are more than maxFanIn spill files, they are first merged down to at most maxFanIn files.
+     * The spill files are deleted when the returned MergedLines is closed (or when they are merged).
+     * @param spillFiles Spill files, in the order in which they were written.
+     * @return The lines of all spill files in sorted order.
+     */
+    @NotNull
+    public MergedLines merge(@NotNull List<File> spillFiles) throws IOException {
+        List<File> files = new ArrayList<>(spillFiles);
+        // Every intermediate file, so that none is left behind on an error
+        List<File> created = new ArrayList<>();
+        try {
+            while (files.size() > maxFanIn) {
+                // Merging consecutive files, each into a file in their place, keeps the sort stable
+                List<File> merged = new ArrayList<>();
+                for (int start = 0; start < files.size(); start += maxFanIn) {
+                    List<File> group = files.subList(start, Math.min(start + maxFanIn, files.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                    } else {
+                        try (MergedLines lines = new MergedLines(new ArrayList<>(group))) {
+                            File file = writeSpill(lines);
+                            created.add(file);
+                            merged.add(file);
+                        }
+                    }
+                }
+                files = merged;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            delete(created);
+            delete(spillFiles);
+            throw e;
+        }
+        return new MergedLines(files);
+    }
+
+    /**
+     * Sort a file into another file.
+     * @param inFile File to sort.
+     * @param outFile Sorted file.
+     */
+    public void sort(String inFile, String outFile) throws IOException {
+        try (MergedLines lines = merge(spill(inFile, null));
+             BufferedWriter out = new BufferedWriter(new FileWriter(outFile))) {
+            while (lines.hasNext()) {
+                out.write(lines.next());
+                out.newLine();
+            }
+        }
+    }
+
+    private static void delete(@NotNull List<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                System.err.println("Could not delete: " + file);
+            }
+        }
+    }
+
+    /**
+     * The k-way merge of the spill files.
+     * Lines which compare equal are taken from the earlier spill file first, which keeps the sort stable.
+     */
+    public class MergedLines implements Iterator<String>, Closeable {
+        private final List<File> spillFiles;
+        private final BufferedReader[] readers;
+        private final String[] heads;
+        private final PriorityQueue<Integer> queue;
+
+        private MergedLines(@NotNull List<File> spillFiles) throws IOException {
+            this.spillFiles = spillFiles;
+            this.readers = new BufferedReader[spillFiles.size()];
+            this.heads = new String[spillFiles.size()];
+            this.queue = new PriorityQueue<>(Math.max(1, readers.length), (i, j) -> {
+                int cmp = comparator.compare(heads[i], heads[j]);
+                return cmp != 0 ? cmp : Integer.compare(i, j);
+            });
+            try {
+                for (int i = 0; i < readers.length; i++) {
+                    readers[i] = new BufferedReader(new FileReader(spillFiles.get(i)));
+                    advance(i);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void advance(int i) throws IOException {
+            heads[i] = readers[i].readLine();
+            if (heads[i] != null) {
+                queue.add(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            Integer i = queue.poll();
+            if (i == null) {
+                throw new NoSuchElementException();
+            }
+            String line = heads[i];
+            try {
+                advance(i);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() {
+            for (BufferedReader reader : readers) {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            delete(spillFiles);
+        }
+    }
+}
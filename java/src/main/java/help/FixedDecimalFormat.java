@@ -0,0 +1,80 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Format doubles with a fixed number of decimal places, as String.format("%.nf") does, without the cost of
+ * parsing a format string and going through a Formatter for every number.
+ * Numbers are rounded half up on their shortest decimal representation (Double.toString()), exactly as
+ * String.format() rounds them. The digits are computed on longs; the few numbers which lie too close to a
+ * rounding boundary for a double product to decide, or are too large, are handed to String.format().
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class FixedDecimalFormat {
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private final int decimals;
+    private final long scale;
+    private final String format;
+
+    /**
+     * @param decimals Number of decimal places (0 to 9).
+     */
+    public FixedDecimalFormat(int decimals) {
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length) {
+            throw new IllegalArgumentException("Number of decimal places must be between 0 and "
+                    + (POWERS_OF_TEN.length - 1) + ": " + decimals);
+        }
+        this.decimals = decimals;
+        this.scale = POWERS_OF_TEN[decimals];
+        this.format = "%." + decimals + "f";
+    }
+
+    @NotNull
+    public String format(double value) {
+        return format(value, new StringBuilder(24)).toString();
+    }
+
+    /**
+     * Append the formatted value to a StringBuilder.
+     * @param value Value to format.
+     * @param sb StringBuilder to append to.
+     * @return sb
+     */
+    @NotNull
+    public StringBuilder format(double value, @NotNull StringBuilder sb) {
+        double scaled = Math.abs(value) * scale;
+        // Larger products (and NaN and infinities) are not precise enough to round on
+        if (!(scaled < 1e9d)) {
+            return sb.append(String.format(format, value));
+        }
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        // Near a tie the rounding depends on the decimal representation, not on the (inexact) product
+        if (Math.abs(fraction - 0.5d) < 1e-6d) {
+            return sb.append(String.format(format, value));
+        }
+        long units = (long) floor + (fraction > 0.5d ? 1 : 0);
+
+        // String.format keeps the sign of a negative number rounded to zero, and of -0.0
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            sb.append('-');
+        }
+        long integer = units / scale;
+        sb.append(integer);
+        if (decimals > 0) {
+            sb.append('.');
+            long fractional = units - integer * scale;
+            for (long p = scale / 10; p > 0; p /= 10) {
+                sb.append((char) ('0' + fractional / p));
+                fractional %= p;
+            }
+        }
+        return sb;
+    }
+}
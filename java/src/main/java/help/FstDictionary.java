@@ -0,0 +1,192 @@
+package help;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * A read-only (Key, Value) dictionary stored as a Lucene FST.
+ * The TSV/CSV maps used by the experiments (aspect to entity, query id to name, entity id to name) are compiled once
+ * into a .fst file. The file is memory-mapped and looked up in place, so opening it is near-instant and does not use
+ * heap in proportion to the number of keys.
+ * The dictionary is a java.util.Map so that it can be used wherever the Map read by Utilities.readTsvOrCsvFile() was.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class FstDictionary extends AbstractMap<String, String> implements Closeable {
+    private static final String CODEC = "FstDictionary";
+    private static final int VERSION = 0;
+
+    private final Directory directory;
+    private final IndexInput in;
+    private final FST<BytesRef> fst;
+    private final int size;
+
+    /**
+     * Open a dictionary written by build().
+     * @param fstFile Path to the .fst file.
+     */
+    public FstDictionary(@NotNull String fstFile) throws IOException {
+        Path path = new File(fstFile).toPath().toAbsolutePath();
+        this.directory = new MMapDirectory(path.getParent());
+        this.in = directory.openInput(path.getFileName().toString(), IOContext.READ);
+        CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+        this.size = in.readVInt();
+        // Nothing is written after the header of an empty dictionary
+        this.fst = size == 0 ? null : new FST<>(in, ByteSequenceOutputs.getSingleton(), new OffHeapFSTStore());
+    }
+
+    /**
+     * Compile a TSV/CSV file of (Key, Value) pairs into a .fst file.
+     * The file is parsed as in Utilities.readTsvOrCsvFile(), so if a key is repeated the last value wins.
+     * @param inFile TSV/CSV file to compile.
+     * @param fileType "tsv" or "csv".
+     * @param fstFile Path to the .fst file to write.
+     */
+    public static void build(String inFile, String fileType, @NotNull String fstFile) throws IOException {
+        System.out.print("Reading " + inFile + "....");
+        Map<String, String> map = Utilities.readTsvOrCsvFile(inFile, fileType);
+        System.out.println("[Done].");
+
+        // The FST must be built from keys in sorted (unsigned byte) order
+        BytesRef[] keys = new BytesRef[map.size()];
+        int n = 0;
+        for (String key : map.keySet()) {
+            keys[n++] = new BytesRef(key);
+        }
+        Arrays.sort(keys);
+
+        FSTCompiler<BytesRef> fstCompiler = new FSTCompiler<>(FST.INPUT_TYPE.BYTE1, ByteSequenceOutputs.getSingleton());
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        ProgressBar pb = new ProgressBar("Compiling", keys.length);
+        for (BytesRef key : keys) {
+            fstCompiler.add(Util.toIntsRef(key, scratch), new BytesRef(map.get(key.utf8ToString())));
+            pb.step();
+        }
+        pb.close();
+        FST<BytesRef> fst = fstCompiler.compile();
+
+        Path path = new File(fstFile).toPath().toAbsolutePath();
+        try (Directory dir = FSDirectory.open(path.getParent());
+             IndexOutput out = dir.createOutput(path.getFileName().toString(), IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, CODEC, VERSION);
+            out.writeVInt(keys.length);
+            if (fst != null) {
+                fst.save(out);
+            }
+        }
+        System.out.println("Wrote " + keys.length + " keys to: " + fstFile);
+    }
+
+    /**
+     * Look up the value of a key.
+     * @param key Key to look up.
+     * @return The value or null if the key is not in the dictionary.
+     */
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String) || size == 0) {
+            return null;
+        }
+        try {
+            BytesRef value = Util.get(fst, new BytesRef((String) key));
+            return value == null ? null : value.utf8ToString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Entries in sorted key order, read from the FST while iterating.
+     */
+    @NotNull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @NotNull
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new FstIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        directory.close();
+    }
+
+    private class FstIterator implements Iterator<Entry<String, String>> {
+        private final BytesRefFSTEnum<BytesRef> fstEnum;
+        private BytesRefFSTEnum.InputOutput<BytesRef> next;
+
+        FstIterator() {
+            fstEnum = size == 0 ? null : new BytesRefFSTEnum<>(fst);
+            advance();
+        }
+
+        private void advance() {
+            try {
+                next = fstEnum == null ? null : fstEnum.next();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> entry = new SimpleImmutableEntry<>(next.input.utf8ToString(),
+                    next.output.utf8ToString());
+            advance();
+            return entry;
+        }
+    }
+
+    public static void main(@NotNull String[] args) {
+        String inFile = args[0];
+        String fstFile = args[1];
+        String fileType = inFile.contains("tsv") ? "tsv" : "csv";
+        try {
+            build(inFile, fileType, fstFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
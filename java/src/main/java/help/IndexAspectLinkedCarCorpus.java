@@ -5,94 +5,421 @@ import edu.unh.cs.treccar_v2.read_data.DeserializeData;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.jetbrains.annotations.NotNull;
 import org.json.simple.JSONObject;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Create an index of the TREC CAR corpus which is already aspect linked.
+ * Besides the stored fields, every link is indexed in the "EntityId" field: the term is the id of the linked
+ * entity and the payload of each position is the id of the linked aspect. The postings of an entity are therefore
+ * the list of (paragraph, aspect) pairs linking to it, which AspectLinkPostings reads without fetching documents.
  * @version 1/22/2020
  * @author Shubham Chatterjee
  */
 
 public class IndexAspectLinkedCarCorpus {
-    private IndexWriter writer = null;
+    private static final FieldType ENTITY_LINK_TYPE = new FieldType();
+    static {
+        // Positions are needed to store payloads; norms are useless as the field is never scored
+        ENTITY_LINK_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        ENTITY_LINK_TYPE.setTokenized(true);
+        ENTITY_LINK_TYPE.setOmitNorms(true);
+        ENTITY_LINK_TYPE.freeze();
+    }
+    // Paragraphs are handed from the decoders to the builders in batches; END tells a builder to stop
+    private static final int BATCH_SIZE = 256;
+    private static final Batch END = new Batch(null, new ArrayList<>());
+    // Field holding the name of the corpus file of a paragraph, and prefix of the commit user data of a finished file
+    private static final String SOURCE_FIELD = "SourceFile";
+    private static final String COMPLETED_PREFIX = "file:";
+
+    // One writer per shard; a single writer if the index is not sharded
+    private IndexWriter[] writers = null;
     private final ProgressBar pb;
+    private final int numDecoders;
+    private final int numBuilders;
+    private final long commitEvery;
+    private final IndexProfile profile;
+    private final AtomicLong numIndexed = new AtomicLong();
+    private final BlockingQueue<Batch> queue;
+    // Corpus files all of whose paragraphs are in the index: Key = Name and Value = "Size:CRC32"
+    private final Map<String, String> completedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * A corpus file being indexed.
+     * The file is complete once it has been decoded and every paragraph queued from it has been added to the index.
+     */
+    private static class FileState {
+        private final File file;
+        private final AtomicLong pending = new AtomicLong();
+        private volatile boolean decoded = false;
+        // Set if any paragraph of the file could not be added, so that the file is not recorded as indexed
+        private volatile boolean failed = false;
+        private volatile String checksum = null;
+
+        FileState(File file) {
+            this.file = file;
+        }
+    }
+
+    private static class Batch {
+        private final FileState file;
+        private final List<Data.Paragraph> paragraphs;
+
+        Batch(FileState file, List<Data.Paragraph> paragraphs) {
+            this.file = file;
+            this.paragraphs = paragraphs;
+        }
+    }
 
     public IndexAspectLinkedCarCorpus(String pathToCorpus, String indexDir) {
+        this(pathToCorpus, indexDir, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                Runtime.getRuntime().availableProcessors(), 0, IndexProfile.defaultProfile(), 1);
+    }
+
+    /**
+     * @param numDecoders Number of corpus files decoded at the same time.
+     * @param numBuilders Number of threads making Lucene documents and adding them to the index.
+     * @param commitEvery Commit after every so many documents, or only at the end if 0.
+     * @param profile How the index is built (see IndexProfile).
+     * @param numShards Number of shards to partition the index into by paragraph id (see ShardedIndexSearcher),
+     *                  or 1 for a single index.
+     */
+    public IndexAspectLinkedCarCorpus(String pathToCorpus,
+                                      String indexDir,
+                                      int numDecoders,
+                                      int numBuilders,
+                                      long commitEvery,
+                                      IndexProfile profile,
+                                      int numShards) {
+        this.numDecoders = Math.max(1, numDecoders);
+        this.numBuilders = Math.max(1, numBuilders);
+        this.commitEvery = commitEvery;
+        this.profile = profile;
+        this.queue = new ArrayBlockingQueue<>(4 * this.numBuilders);
         pb = new ProgressBar("Progress",29794697 );
         try {
-            writer = createWriter(indexDir);
+            if (numShards > 1) {
+                // All shards are built at the same time; every document goes to the writer of its shard
+                ShardedIndexSearcher.writeLayout(indexDir, numShards);
+                writers = new IndexWriter[numShards];
+                for (int i = 0; i < numShards; i++) {
+                    writers[i] = createWriter(ShardedIndexSearcher.shardDir(indexDir, i).getPath());
+                }
+                System.out.println("Building " + numShards + " shards.");
+            } else {
+                writers = new IndexWriter[]{createWriter(indexDir)};
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        createIndex(pathToCorpus);
+        createIndex(pathToCorpus, indexDir);
     }
 
-    private void createIndex(String pathToCorpus) {
+    /**
+     * Index the corpus with a pipeline: a pool of decoders reads the corpus files in parallel and puts batches of
+     * paragraphs on a bounded queue; a pool of builders takes the batches, makes the Lucene documents and adds them
+     * to the shared IndexWriter, which accepts concurrent addDocument() calls.
+     *
+     * Every commit records the corpus files which are completely indexed (name, size and CRC32) in its user data.
+     * If the index already exists, the files recorded in its last commit are skipped when they have not changed, and
+     * the paragraphs of any other file (left over from an interrupted run) are deleted before the file is indexed
+     * again. A crashed run can therefore be resumed by running it again.
+     */
+    private void createIndex(String pathToCorpus, String indexDir) {
        File corpusDir = new File(pathToCorpus);
        File[] files = corpusDir.listFiles();
         assert files != null;
-        for (File file : files) {
-           indexFile(file);
-        }
+        List<File> toIndex;
         try {
-            writer.commit();
-            writer.close();
+            toIndex = resume(files);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
-        pb.close();
-
-    }
-
-    private void indexFile(@NotNull File file) {
-        String filePath = file.getAbsolutePath();
-        BufferedInputStream bis = null;
+        System.out.println("Decoding " + toIndex.size() + " files with " + numDecoders + " threads, indexing with "
+                + numBuilders + " threads.");
 
+        ExecutorService decoders = Executors.newFixedThreadPool(numDecoders);
+        ExecutorService builders = Executors.newFixedThreadPool(numBuilders);
+        List<Future<?>> building = new ArrayList<>();
+        for (int i = 0; i < numBuilders; i++) {
+            building.add(builders.submit(this::build));
+        }
+        boolean interrupted = false;
         try {
-            bis = new BufferedInputStream(new FileInputStream(filePath));
-            for(Data.Paragraph paragraph : DeserializeData.iterableParagraphs(bis)) {
-                Document document = toLuceneDoc(paragraph);
+            List<Future<?>> decoding = new ArrayList<>();
+            for (File file : toIndex) {
+                decoding.add(decoders.submit(() -> decodeFile(new FileState(file))));
+            }
+            for (Future<?> future : decoding) {
                 try {
-                    writer.addDocument(document);
-                    pb.step();
-                } catch (IOException | NullPointerException e) {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // A corrupt file does not stop the other files from being indexed
                     e.printStackTrace();
                 }
-
             }
-        } catch (FileNotFoundException e) {
+        } catch (InterruptedException e) {
+            // Stop decoding; the builders still finish the batches already queued
+            interrupted = true;
             e.printStackTrace();
         } finally {
+            decoders.shutdownNow();
+        }
+        // The builders are never interrupted: an IndexWriter interrupted in addDocument() may have to close itself
+        interrupted |= stopBuilders(building);
+        builders.shutdown();
+        pb.close();
+        System.out.println("Indexed " + numIndexed.get() + " paragraphs.");
+        for (File file : toIndex) {
+            if (!completedFiles.containsKey(file.getName())) {
+                System.err.println("Not completely indexed (will be indexed again on the next run): " + file);
+            }
+        }
+        for (int i = 0; i < writers.length; i++) {
             try {
-                if(bis != null) {
-                    bis.close();
-                    writer.commit();
-                } else {
-                    System.out.println("Buffer has not been initialized!");
-                }
-            } catch (IOException e) {
+                writers[i].setLiveCommitData(commitData());
+                profile.close(writers[i],
+                        writers.length > 1 ? ShardedIndexSearcher.shardDir(indexDir, i).getPath() : indexDir);
+            } catch (IOException | AlreadyClosedException e) {
                 e.printStackTrace();
             }
         }
+        // Only now, as the writers write through interruptible channels
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tell every builder to stop once the queue is drained and wait for all of them, even if this thread is
+     * interrupted meanwhile.
+     * @param building Futures of the builders.
+     * @return True if this thread was interrupted while waiting.
+     */
+    private boolean stopBuilders(@NotNull List<Future<?>> building) {
+        boolean interrupted = false;
+        for (int i = 0; i < building.size(); i++) {
+            while (true) {
+                try {
+                    queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Future<?> future : building) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * Find the files which still have to be indexed, from the user data of the last commit.
+     * With shards, a file is only taken as indexed if the last commit of every shard records it.
+     * The paragraphs of those files which may be in the index already are deleted.
+     * @param files Corpus files
+     * @return Files to index
+     */
+    @NotNull
+    private List<File> resume(@NotNull File[] files) throws IOException {
+        Map<String, String> recorded = null;
+        for (IndexWriter writer : writers) {
+            Map<String, String> shardRecorded = new HashMap<>();
+            Iterable<Map.Entry<String, String>> commitData = writer.getLiveCommitData();
+            if (commitData != null) {
+                for (Map.Entry<String, String> entry : commitData) {
+                    if (entry.getKey().startsWith(COMPLETED_PREFIX)) {
+                        shardRecorded.put(entry.getKey().substring(COMPLETED_PREFIX.length()), entry.getValue());
+                    }
+                }
+            }
+            if (recorded == null) {
+                recorded = shardRecorded;
+            } else {
+                recorded.entrySet().retainAll(shardRecorded.entrySet());
+            }
+        }
+        // Files which are no longer in the corpus directory stay recorded
+        completedFiles.putAll(recorded);
+
+        List<File> toIndex = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            String record = recorded.get(name);
+            if (record != null && record.equals(file.length() + ":" + checksum(file))) {
+                System.out.println("Already indexed, skipping: " + name);
+                continue;
+            }
+            if (record != null) {
+                System.out.println("Changed since it was indexed, indexing again: " + name);
+                completedFiles.remove(name);
+            }
+            for (IndexWriter writer : writers) {
+                writer.deleteDocuments(new Term(SOURCE_FIELD, name));
+            }
+            toIndex.add(file);
+        }
+        return toIndex;
+    }
+
+    @NotNull
+    private static String checksum(@NotNull File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    @NotNull
+    private Map<String, String> commitData() {
+        Map<String, String> data = new TreeMap<>();
+        for (Map.Entry<String, String> entry : completedFiles.entrySet()) {
+            data.put(COMPLETED_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return data;
+    }
+
+    /**
+     * Commit the documents added so far, recording the files which are complete.
+     * A file is only recorded after all its documents were added, so they are all in the commit.
+     */
+    private synchronized void checkpoint() throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.setLiveCommitData(commitData());
+            writer.commit();
+        }
+    }
+
+    /**
+     * Decode the paragraphs of a corpus file and queue them in batches.
+     * The checksum of the file is computed while it is read.
+     */
+    private void decodeFile(@NotNull FileState state) {
+        String filePath = state.file.getAbsolutePath();
+        CRC32 crc = new CRC32();
+
+        try (BufferedInputStream bis = new BufferedInputStream(
+                new CheckedInputStream(new FileInputStream(filePath), crc))) {
+            List<Data.Paragraph> batch = new ArrayList<>(BATCH_SIZE);
+            for(Data.Paragraph paragraph : DeserializeData.iterableParagraphs(bis)) {
+                batch.add(paragraph);
+                if (batch.size() == BATCH_SIZE) {
+                    state.pending.addAndGet(batch.size());
+                    queue.put(new Batch(state, batch));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                state.pending.addAndGet(batch.size());
+                queue.put(new Batch(state, batch));
+            }
+            // The checksum covers the whole file, including anything after the last paragraph
+            byte[] buffer = new byte[1 << 16];
+            while (bis.read(buffer) > 0) {
+                // Only read for the checksum
+            }
+            state.checksum = Long.toHexString(crc.getValue());
+            state.decoded = true;
+            if (state.pending.get() == 0) {
+                complete(state);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        }
+    }
+
+    private void complete(@NotNull FileState state) {
+        // Called by the decoder or by the builder adding the last paragraph, possibly both
+        if (state.failed) {
+            System.err.println("Not recording " + state.file.getName() + " as indexed: some paragraphs failed.");
+            return;
+        }
+        completedFiles.put(state.file.getName(), state.file.length() + ":" + state.checksum);
+    }
+
+    /**
+     * Take batches of paragraphs from the queue and add them to the index until told to stop.
+     */
+    private void build() {
+        try {
+            Batch batch;
+            while ((batch = queue.take()) != END) {
+                String sourceFile = batch.file.file.getName();
+                for (Data.Paragraph paragraph : batch.paragraphs) {
+                    try {
+                        IndexWriter writer = writers.length > 1
+                                ? writers[ShardedIndexSearcher.shardOf(paragraph.getParaId(), writers.length)]
+                                : writers[0];
+                        writer.addDocument(toLuceneDoc(paragraph, sourceFile));
+                        pb.step();
+                        long n = numIndexed.incrementAndGet();
+                        if (commitEvery > 0 && n % commitEvery == 0) {
+                            // A checkpoint: documents added so far survive a crash
+                            checkpoint();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // A bad paragraph (or a failed checkpoint) must not stop the builder, or the decoders would
+                        // block on the full queue. Set before pending is decremented below, so complete() sees it
+                        batch.file.failed = true;
+                        e.printStackTrace();
+                    } finally {
+                        if (batch.file.pending.decrementAndGet() == 0 && batch.file.decoded) {
+                            complete(batch.file);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        }
     }
     @NotNull
     private IndexWriter createWriter(String index)throws IOException {
@@ -104,18 +431,18 @@ public class IndexAspectLinkedCarCorpus {
         final DelegatingAnalyzerWrapper queryAnalyzer = new PerFieldAnalyzerWrapper(textAnalyzer, fieldAnalyzers);
         IndexWriterConfig conf = new IndexWriterConfig(queryAnalyzer);
         conf.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        return new IndexWriter(indexDir, conf);
+        return new IndexWriter(indexDir, profile.configure(conf));
     }
 
     @NotNull
-    private Document toLuceneDoc(@NotNull Data.Paragraph paragraph) {
+    private Document toLuceneDoc(@NotNull Data.Paragraph paragraph, String sourceFile) {
         Document doc = new Document();
+        doc.add(new StringField(SOURCE_FIELD, sourceFile, Field.Store.NO));
         String paraId = paragraph.getParaId();
         String paraText = paragraph.getTextOnly();
         String entityList = getEntities(paragraph);
-        doc.add(new StringField("Id", paraId, Field.Store.YES));
-        doc.add(new TextField("Text", paraText, Field.Store.YES));
-        doc.add(new TextField("Entities", entityList, Field.Store.YES));
+        profile.addFields(doc, paraId, paraText, entityList);
+        doc.add(new Field(AspectLinkPostings.FIELD, new EntityLinkTokenStream(getLinks(paragraph)), ENTITY_LINK_TYPE));
         return doc;
 
 
@@ -142,9 +469,69 @@ public class IndexAspectLinkedCarCorpus {
         return String.join("\n", entityList);
     }
 
+    /**
+     * Get the (entity, aspect) pairs of the links in the paragraph, in order.
+     * The aspect is null if the link does not point to a section.
+     */
+    @NotNull
+    private List<String[]> getLinks(@NotNull Data.Paragraph paragraph) {
+        List<String[]> links = new ArrayList<>();
+        for (Data.ParaBody body : paragraph.getBodies()) {
+            if (body instanceof Data.ParaLink) {
+                Data.ParaLink paraLink = (Data.ParaLink) body;
+                if (paraLink.getPageId() != null) {
+                    links.add(new String[]{paraLink.getPageId(), paraLink.getLinkSection()});
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Token stream with one token per link: the term is the entity and the payload is the aspect.
+     */
+    private static final class EntityLinkTokenStream extends TokenStream {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+        private final List<String[]> links;
+        private int next = 0;
+
+        EntityLinkTokenStream(List<String[]> links) {
+            this.links = links;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= links.size()) {
+                return false;
+            }
+            clearAttributes();
+            String[] link = links.get(next++);
+            termAtt.setEmpty().append(link[0]);
+            payloadAtt.setPayload(link[1] == null ? null : new BytesRef(link[1]));
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+
     public static void main(@NotNull String[] args) {
         String corpusDir = args[0];
         String indexDir = args[1];
-        new IndexAspectLinkedCarCorpus(corpusDir, indexDir);
+        if (args.length > 4) {
+            int numDecoders = Integer.parseInt(args[2]);
+            int numBuilders = Integer.parseInt(args[3]);
+            long commitEvery = Long.parseLong(args[4]);
+            IndexProfile profile = args.length > 5 ? IndexProfile.parse(args[5]) : IndexProfile.defaultProfile();
+            int numShards = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+            new IndexAspectLinkedCarCorpus(corpusDir, indexDir, numDecoders, numBuilders, commitEvery, profile,
+                    numShards);
+        } else {
+            new IndexAspectLinkedCarCorpus(corpusDir, indexDir);
+        }
     }
 }
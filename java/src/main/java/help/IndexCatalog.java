@@ -2,6 +2,7 @@ package help;
 
 
 import me.tongfei.progressbar.ProgressBar;
+import me.tongfei.progressbar.ProgressBarBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
@@ -9,59 +10,336 @@ import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.jetbrains.annotations.NotNull;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Create an index of the aspect catalog provided with the aspect linking dataset from CIKM 2020.
+ * The entity owning each aspect is kept as a SortedDocValues column ("EntityId") so that aspect hits can be
+ * mapped to entities without an external aspect to entity map or loading the stored document.
+ * The catalog is parsed and indexed by a pool of threads.
+ * An aspect is a candidate of many mentions, so it appears on many lines of the catalog; only its first occurrence is
+ * indexed. The aspect ids seen so far are kept in a CompactStringSet.
  * @version 1/20/2020
  * @author Shubham Chatterjee
  */
 
 public class IndexCatalog {
+    public static final String ENTITY_FIELD = "EntityId";
+    private static final int BATCH_SIZE = 64;
+    // An empty batch tells a worker to stop
+    private static final List<String> END = new ArrayList<>();
+
+    private final int numThreads;
+    private final IndexProfile profile;
+    private final AtomicLong numAspects = new AtomicLong();
+    private final AtomicLong numDuplicates = new AtomicLong();
+    private final CompactStringSet seenAspects = new CompactStringSet();
+
     public IndexCatalog(String catalog, String indexDir) throws IOException {
+        this(catalog, indexDir, Runtime.getRuntime().availableProcessors(), IndexProfile.defaultProfile());
+    }
+
+    /**
+     * @param numThreads Number of threads parsing the catalog and adding the aspects to the index.
+     * @param profile How the index is built (see IndexProfile).
+     */
+    public IndexCatalog(String catalog, String indexDir, int numThreads, IndexProfile profile) throws IOException {
+        this.numThreads = Math.max(1, numThreads);
+        this.profile = profile;
         index(catalog, indexDir);
     }
 
+    /**
+     * Index the catalog with a pipeline: this thread decompresses the catalog and hands batches of lines to a pool of
+     * workers over a bounded queue. Every worker parses its lines with a streaming parser which keeps only the
+     * fields of the aspects that are indexed, and adds the aspects to the shared IndexWriter.
+     * The progress is measured in compressed bytes read, as the number of aspects is not known in advance.
+     */
     private void index(String catalog, String indexDir) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(catalog))));
-        String line;
-        JSONParser parser = new JSONParser();
         IndexWriter writer = createWriter(indexDir);
-        ProgressBar pb = new ProgressBar("Progress",7893275 );
-        while ((line = br.readLine()) != null) {
-            try {
-                JSONObject jsonObject = (JSONObject) parser.parse(line);
-                JSONArray candidateAspects = (JSONArray) jsonObject.get("candidate_aspects");
-                for (Object candidate : candidateAspects) {
-                    JSONObject c = (JSONObject) candidate;
-                    Document document = toLuceneDoc(c);
-                    writer.addDocument(document);
-                    pb.step();
+        BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(4 * numThreads);
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            futures.add(workers.submit(() -> indexLines(queue, writer)));
+        }
+
+        ProgressBar pb = new ProgressBarBuilder()
+                .setTaskName("Progress")
+                .setInitialMax(new File(catalog).length())
+                .setUnit("MB", 1 << 20)
+                .build();
+        CountingInputStream compressed = new CountingInputStream(new FileInputStream(catalog));
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(compressed)))) {
+            String line;
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            while ((line = br.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    queue.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    pb.stepTo(compressed.getCount());
                 }
-            } catch (ParseException e) {
-                e.printStackTrace();
             }
+            if (!batch.isEmpty()) {
+                queue.put(batch);
+            }
+            for (int i = 0; i < numThreads; i++) {
+                queue.put(END);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pb.stepTo(compressed.getCount());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdownNow();
         }
-        writer.commit();
-        writer.close();
         pb.close();
+        System.out.println("Indexed " + numAspects.get() + " aspects.");
+        System.out.println("Skipped " + numDuplicates.get() + " duplicate aspects.");
+        profile.close(writer, indexDir);
+    }
+
+    /**
+     * Parse batches of catalog lines from the queue and add their aspects to the index until told to stop.
+     */
+    private void indexLines(@NotNull BlockingQueue<List<String>> queue, @NotNull IndexWriter writer) {
+        JSONParser parser = new JSONParser();
+        CatalogLineHandler handler = new CatalogLineHandler(doc -> {
+            try {
+                writer.addDocument(doc);
+                numAspects.incrementAndGet();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        try {
+            List<String> batch;
+            while ((batch = queue.take()) != END) {
+                for (String line : batch) {
+                    try {
+                        parser.parse(line, handler);
+                    } catch (ParseException | RuntimeException e) {
+                        // A bad line must not stop the worker, or the queue would fill up
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streaming handler for a line of the catalog.
+     * Only candidate_aspects[*].aspect_id, aspect_name, aspect_content.content and aspect_content.entities are kept;
+     * every other value is skipped as it is parsed. The entities are rebuilt as JSONObjects, so they are written to
+     * the index exactly as before.
+     */
+    private class CatalogLineHandler implements ContentHandler {
+        private final Consumer<Document> sink;
+        // Keys of the entries we are in; "[]" for an array
+        private final List<String> path = new ArrayList<>();
+        private String aspectId, aspectName, aspectContent;
+        private final List<String> entities = new ArrayList<>();
+        // Values being built inside aspect_content.entities
+        private final Deque<Object> containers = new ArrayDeque<>();
+        private final Deque<String> containerKeys = new ArrayDeque<>();
+
+        CatalogLineHandler(Consumer<Document> sink) {
+            this.sink = sink;
+        }
+
+        private boolean at(String... keys) {
+            if (path.size() != keys.length) {
+                return false;
+            }
+            for (int i = keys.length - 1; i >= 0; i--) {
+                if (!keys[i].equals(path.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean inCandidate() {
+            return at("candidate_aspects", "[]");
+        }
+
+        private boolean inEntities() {
+            return at("candidate_aspects", "[]", "aspect_content", "entities", "[]");
+        }
+
+        @Override
+        public void startJSON() {
+            path.clear();
+            containers.clear();
+            containerKeys.clear();
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            if (!containers.isEmpty()) {
+                containers.push(new JSONObject());
+            } else if (inEntities()) {
+                containers.push(new JSONObject());
+            } else if (inCandidate()) {
+                aspectId = aspectName = aspectContent = null;
+                entities.clear();
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean endObject() {
+            if (!containers.isEmpty()) {
+                Object value = containers.pop();
+                if (containers.isEmpty()) {
+                    entities.add(((JSONObject) value).toJSONString());
+                } else {
+                    add(value);
+                }
+            } else if (inCandidate()) {
+                if (aspectId == null || aspectName == null || aspectContent == null) {
+                    System.err.println("Skipping incomplete aspect: " + aspectId);
+                } else if (!seenAspects.add(aspectId)) {
+                    numDuplicates.incrementAndGet();
+                } else {
+                    sink.accept(toLuceneDoc(aspectId, aspectName, aspectContent, String.join("\n", entities)));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            path.add(key);
+            containerKeys.push(key);
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            path.remove(path.size() - 1);
+            containerKeys.pop();
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            if (!containers.isEmpty()) {
+                containers.push(new JSONArray());
+            }
+            path.add("[]");
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            path.remove(path.size() - 1);
+            if (!containers.isEmpty()) {
+                Object value = containers.pop();
+                add(value);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (!containers.isEmpty()) {
+                add(value);
+            } else if (at("candidate_aspects", "[]", "aspect_id")) {
+                aspectId = String.valueOf(value);
+            } else if (at("candidate_aspects", "[]", "aspect_name")) {
+                aspectName = String.valueOf(value);
+            } else if (at("candidate_aspects", "[]", "aspect_content", "content")) {
+                aspectContent = String.valueOf(value);
+            }
+            return true;
+        }
+
+        /**
+         * Add a value to the entity value being built.
+         */
+        @SuppressWarnings("unchecked")
+        private void add(Object value) {
+            Object container = containers.peek();
+            if (container instanceof JSONObject) {
+                ((JSONObject) container).put(containerKeys.peek(), value);
+            } else {
+                ((JSONArray) container).add(value);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from a stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
     @NotNull
     private IndexWriter createWriter(String index)throws IOException {
@@ -74,36 +352,34 @@ public class IndexCatalog {
         final DelegatingAnalyzerWrapper queryAnalyzer = new PerFieldAnalyzerWrapper(textAnalyzer, fieldAnalyzers);
         IndexWriterConfig conf = new IndexWriterConfig(queryAnalyzer);
         conf.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        return new IndexWriter(indexDir, conf);
+        return new IndexWriter(indexDir, profile.configure(conf));
     }
     @NotNull
-    private Document toLuceneDoc(@NotNull JSONObject candidate) {
+    private Document toLuceneDoc(String aspectId, String aspectName, String aspectContent, String entityList) {
         Document doc = new Document();
-        String aspectId = candidate.get("aspect_id").toString();
-        String aspectName = candidate.get("aspect_name").toString();
-        JSONObject content = (JSONObject) candidate.get("aspect_content");
-        String aspectContent = content.get("content").toString();
-        String entityList = getEntities((JSONArray) content.get("entities"));
-
-        doc.add(new StringField("Id", aspectId, Field.Store.YES));
+        profile.addFields(doc, aspectId, aspectContent, entityList);
         doc.add(new TextField("Name", aspectName, Field.Store.YES));
-        doc.add(new TextField("Text", aspectContent, Field.Store.YES));
-        doc.add(new TextField("Entities", entityList, Field.Store.YES));
+        doc.add(new SortedDocValuesField(ENTITY_FIELD, new BytesRef(toEntityId(aspectId))));
         return doc;
     }
 
+    /**
+     * Get the id of the entity owning the aspect.
+     * Aspect ids are the id of the entity page followed by the section path, e.g. enwiki:Page/Section.
+     * @param aspectId Id of the aspect.
+     * @return Id of the entity.
+     */
     @NotNull
-    private String getEntities(@NotNull JSONArray entities) {
-        List<String> entityList = new ArrayList<>();
-        for (Object entity : entities) {
-            entityList.add(((JSONObject) entity).toJSONString() );
-        }
-        return String.join("\n", entityList);
+    public static String toEntityId(@NotNull String aspectId) {
+        int end = aspectId.indexOf('/');
+        return end < 0 ? aspectId : aspectId.substring(0, end);
     }
 
     public static void main(@NotNull String[] args) throws IOException {
         String catalog = args[0];
         String indexDir = args[1];
-        new IndexCatalog(catalog, indexDir);
+        int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        IndexProfile profile = args.length > 3 ? IndexProfile.parse(args[3]) : IndexProfile.defaultProfile();
+        new IndexCatalog(catalog, indexDir, numThreads, profile);
     }
 }
@@ -0,0 +1,201 @@
+package help;
+
+import org.apache.lucene.codecs.lucene87.Lucene87Codec;
+import org.apache.lucene.codecs.lucene87.Lucene87StoredFieldsFormat;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * How an index is built: the writer settings and the options of the fields shared by our indexes.
+ *
+ * The default profile builds the index as it always was.
+ * The bulk profile is for building an index from scratch as fast as possible:
+ *   - a large RAM buffer, so fewer and larger segments are flushed, and a merge policy with more segments per tier,
+ *     so fewer merges run while loading;
+ *   - the index is sorted by Id (a SortedDocValues copy of the Id field), so documents with nearby ids are stored
+ *     together, which gives locality to id lookups and to fetching a batch of ids;
+ *   - Text is indexed with frequencies but without positions, as we never run phrase queries;
+ *   - Entities is only stored, as it is never searched;
+ *   - the stored fields are compressed with the chosen mode;
+ *   - optionally, the index is merged into a single segment at the end.
+ * A size and timing report is printed when the index is closed.
+ *
+ * A profile is given as "default" or "bulk[,ram=MB][,compression=best_speed|best_compression][,optimize]".
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class IndexProfile {
+    private static final FieldType BULK_TEXT_TYPE = new FieldType();
+    static {
+        BULK_TEXT_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        BULK_TEXT_TYPE.setTokenized(true);
+        BULK_TEXT_TYPE.setStored(true);
+        BULK_TEXT_TYPE.freeze();
+    }
+
+    private final boolean bulk;
+    private final double ramBufferMB;
+    private final Lucene87StoredFieldsFormat.Mode compression;
+    private final boolean forceMerge;
+    private final long startTime = System.nanoTime();
+
+    private IndexProfile(boolean bulk, double ramBufferMB, Lucene87StoredFieldsFormat.Mode compression,
+                         boolean forceMerge) {
+        this.bulk = bulk;
+        this.ramBufferMB = ramBufferMB;
+        this.compression = compression;
+        this.forceMerge = forceMerge;
+    }
+
+    @NotNull
+    public static IndexProfile defaultProfile() {
+        return new IndexProfile(false, IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB,
+                Lucene87StoredFieldsFormat.Mode.BEST_SPEED, false);
+    }
+
+    /**
+     * @param ramBufferMB Size of the RAM buffer of the IndexWriter.
+     * @param compression Compression of the stored fields.
+     * @param forceMerge Whether to merge the index into a single segment at the end.
+     */
+    @NotNull
+    public static IndexProfile bulk(double ramBufferMB, Lucene87StoredFieldsFormat.Mode compression,
+                                    boolean forceMerge) {
+        return new IndexProfile(true, ramBufferMB, compression, forceMerge);
+    }
+
+    /**
+     * Parse a profile given as "default" or "bulk[,ram=MB][,compression=best_speed|best_compression][,optimize]".
+     * @param spec Profile
+     * @return IndexProfile
+     */
+    @NotNull
+    public static IndexProfile parse(@NotNull String spec) {
+        String[] parts = spec.split(",");
+        if (parts[0].equalsIgnoreCase("default")) {
+            return defaultProfile();
+        }
+        if (!parts[0].equalsIgnoreCase("bulk")) {
+            throw new IllegalArgumentException("Unknown index profile: " + spec);
+        }
+        double ramBufferMB = 2048;
+        Lucene87StoredFieldsFormat.Mode compression = Lucene87StoredFieldsFormat.Mode.BEST_SPEED;
+        boolean forceMerge = false;
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i];
+            if (part.startsWith("ram=")) {
+                ramBufferMB = Double.parseDouble(part.substring("ram=".length()));
+            } else if (part.startsWith("compression=")) {
+                compression = Lucene87StoredFieldsFormat.Mode.valueOf(
+                        part.substring("compression=".length()).toUpperCase(Locale.ROOT));
+            } else if (part.equalsIgnoreCase("optimize")) {
+                forceMerge = true;
+            } else {
+                throw new IllegalArgumentException("Unknown index profile option: " + part);
+            }
+        }
+        return bulk(ramBufferMB, compression, forceMerge);
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * Apply the writer settings of the profile.
+     * @param conf IndexWriterConfig
+     * @return conf
+     */
+    @NotNull
+    public IndexWriterConfig configure(@NotNull IndexWriterConfig conf) {
+        if (!bulk) {
+            return conf;
+        }
+        conf.setRAMBufferSizeMB(ramBufferMB);
+        conf.setCodec(new Lucene87Codec(compression));
+        conf.setIndexSort(new Sort(new SortField("Id", SortField.Type.STRING)));
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        // Let segments pile up a little more before merging them, and merge more of them at once
+        mergePolicy.setSegmentsPerTier(20);
+        mergePolicy.setMaxMergeAtOnce(20);
+        mergePolicy.setFloorSegmentMB(64);
+        conf.setMergePolicy(mergePolicy);
+        return conf;
+    }
+
+    /**
+     * Add the Id, Text and Entities fields to a document.
+     * @param doc Document
+     * @param id Id of the document.
+     * @param text Text of the document.
+     * @param entities Entities of the document, one JSON object per line.
+     */
+    public void addFields(@NotNull Document doc, String id, String text, String entities) {
+        doc.add(new StringField("Id", id, Field.Store.YES));
+        if (bulk) {
+            // The index is sorted on this copy of the Id
+            doc.add(new SortedDocValuesField("Id", new BytesRef(id)));
+            doc.add(new Field("Text", text, BULK_TEXT_TYPE));
+            doc.add(new StoredField("Entities", entities));
+        } else {
+            doc.add(new TextField("Text", text, Field.Store.YES));
+            doc.add(new TextField("Entities", entities, Field.Store.YES));
+        }
+    }
+
+    /**
+     * Commit and close the writer, merging the index first if asked to, and print the report.
+     * @param writer IndexWriter
+     * @param indexDir Directory of the index.
+     */
+    public void close(@NotNull IndexWriter writer, String indexDir) throws IOException {
+        long indexed = System.nanoTime();
+        int numDocs = writer.getDocStats().numDocs;
+        if (forceMerge) {
+            System.out.print("Merging the index into one segment...");
+            writer.forceMerge(1);
+            System.out.println("[Done].");
+        }
+        long merged = System.nanoTime();
+        writer.commit();
+        writer.close();
+        long closed = System.nanoTime();
+
+        long size = 0;
+        int numFiles = 0;
+        try (Stream<Path> files = Files.list(new File(indexDir).toPath())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    size += Files.size(file);
+                    numFiles++;
+                }
+            }
+        }
+        System.out.println("Index report (" + (bulk ? "bulk" : "default") + " profile):");
+        System.out.printf(Locale.ROOT, "  Documents:  %d%n", numDocs);
+        System.out.printf(Locale.ROOT, "  Size:       %.1f MB in %d files%n", size / 1048576.0d, numFiles);
+        System.out.printf(Locale.ROOT, "  Indexing:   %.1f s%n", (indexed - startTime) / 1e9d);
+        if (forceMerge) {
+            System.out.printf(Locale.ROOT, "  Merging:    %.1f s%n", (merged - indexed) / 1e9d);
+        }
+        System.out.printf(Locale.ROOT, "  Commit:     %.1f s%n", (closed - merged) / 1e9d);
+        System.out.printf(Locale.ROOT, "  Total:      %.1f s%n", (closed - startTime) / 1e9d);
+    }
+}
@@ -0,0 +1,291 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * An open-addressing hash map from int ordinals to double weights.
+ * Keys must be non-negative (for example ordinals handed out by an OrdinalDictionary).
+ * Nothing is boxed: adding to a weight only touches two primitive arrays, and the map keeps its
+ * capacity when it is cleared so that it can be reused from query to query without allocating.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class IntDoubleHashMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private double[] values;
+    private int size = 0;
+    private int mask;
+
+    public IntDoubleHashMap() {
+        this(16);
+    }
+
+    public IntDoubleHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Add delta to the weight of the key. Absent keys start at zero.
+     * @param key Non-negative key.
+     * @param delta Value to add.
+     */
+    public void addTo(int key, double delta) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            insert(slot, key, delta);
+        } else {
+            values[slot] += delta;
+        }
+    }
+
+    public void put(int key, double value) {
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            insert(slot, key, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Get the weight of the key.
+     * @param key Key to look up.
+     * @return The weight or 0.0 if the key is absent.
+     */
+    public double get(int key) {
+        int slot = slot(key);
+        return keys[slot] == EMPTY ? 0.0d : values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return keys[slot(key)] != EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all entries but keep the capacity.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    public void forEach(@NotNull IntDoubleProcedure procedure) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                procedure.apply(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Sum of all weights.
+     */
+    public double sum() {
+        double sum = 0.0d;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                sum += values[slot];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Find the k entries with the highest weights using a bounded heap.
+     * The caller supplies the output arrays (which double as the heap) so they can be reused.
+     * On return the first n positions hold the entries sorted by descending weight,
+     * ties broken by ascending key.
+     * @param k Number of entries wanted.
+     * @param keysOut Array of at least k ints.
+     * @param valuesOut Array of at least k doubles.
+     * @return n, the number of entries written (min of k and size()).
+     */
+    public int topK(int k, @NotNull int[] keysOut, @NotNull double[] valuesOut) {
+        if (keysOut.length < k || valuesOut.length < k) {
+            throw new IllegalArgumentException("Output arrays are smaller than k = " + k);
+        }
+        if (k <= 0) {
+            return 0;
+        }
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            int key = keys[slot];
+            if (key == EMPTY) {
+                continue;
+            }
+            double value = values[slot];
+            if (n < k) {
+                keysOut[n] = key;
+                valuesOut[n] = value;
+                siftUp(keysOut, valuesOut, n);
+                n++;
+            } else if (worse(keysOut[0], valuesOut[0], key, value)) {
+                keysOut[0] = key;
+                valuesOut[0] = value;
+                siftDown(keysOut, valuesOut, 0, n);
+            }
+        }
+        // The root always holds the worst entry, so moving it to the back yields descending order.
+        for (int end = n - 1; end > 0; end--) {
+            swap(keysOut, valuesOut, 0, end);
+            siftDown(keysOut, valuesOut, 0, end);
+        }
+        return n;
+    }
+
+    /**
+     * Export the map sorted by descending weight, ties broken by ascending key.
+     * When the keys are ordinals from an OrdinalDictionary, ties therefore keep the order in which
+     * the strings were first seen, which is what a LinkedHashMap filled with compute() would give.
+     * @param dictionary Dictionary used to resolve the keys to strings.
+     * @return LinkedHashMap where Key = String and Value = Weight.
+     */
+    @NotNull
+    public LinkedHashMap<String, Double> toSortedMap(@NotNull OrdinalDictionary dictionary) {
+        int[] sortedKeys = new int[size];
+        double[] sortedValues = new double[size];
+        int n = topK(size, sortedKeys, sortedValues);
+        LinkedHashMap<String, Double> sortedMap = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            sortedMap.put(dictionary.get(sortedKeys[i]), sortedValues[i]);
+        }
+        return sortedMap;
+    }
+
+    private int slot(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Keys must be non-negative: " + key);
+        }
+        int slot = mix(key) & mask;
+        int k;
+        while ((k = keys[slot]) != EMPTY && k != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, int key, double value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > (keys.length >> 1)) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                int newSlot = slot(oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new double[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Sort parallel arrays of (key, weight) pairs in place by descending weight, ties broken by ascending key,
+     * the order used by topK().
+     * @param keys Keys
+     * @param values Weights
+     * @param n Number of pairs to sort, from position 0.
+     */
+    public static void sortDescending(@NotNull int[] keys, @NotNull double[] values, int n) {
+        // Heapify with the worst pair at the root, then move the root to the back
+        for (int i = (n >>> 1) - 1; i >= 0; i--) {
+            siftDown(keys, values, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(keys, values, 0, end);
+            siftDown(keys, values, 0, end);
+        }
+    }
+
+    /**
+     * True if (k1, v1) ranks below (k2, v2).
+     */
+    private static boolean worse(int k1, double v1, int k2, double v2) {
+        return v1 < v2 || (v1 == v2 && k1 > k2);
+    }
+
+    private static void siftUp(int[] heapKeys, double[] heapValues, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(heapKeys[i], heapValues[i], heapKeys[parent], heapValues[parent])) {
+                break;
+            }
+            swap(heapKeys, heapValues, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heapKeys, double[] heapValues, int i, int n) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= n) {
+                break;
+            }
+            int right = left + 1;
+            int worst = left;
+            if (right < n && worse(heapKeys[right], heapValues[right], heapKeys[left], heapValues[left])) {
+                worst = right;
+            }
+            if (!worse(heapKeys[worst], heapValues[worst], heapKeys[i], heapValues[i])) {
+                break;
+            }
+            swap(heapKeys, heapValues, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swap(int[] heapKeys, double[] heapValues, int i, int j) {
+        int k = heapKeys[i];
+        heapKeys[i] = heapKeys[j];
+        heapKeys[j] = k;
+        double v = heapValues[i];
+        heapValues[i] = heapValues[j];
+        heapValues[j] = v;
+    }
+
+    /**
+     * Callback for forEach().
+     */
+    public interface IntDoubleProcedure {
+        void apply(int key, double value);
+    }
+}
@@ -61,10 +61,25 @@ public class LuceneHelper {
 
     }
 
+    /**
+     * Open an index for searching.
+     * A sharded index (see ShardedIndexSearcher) is opened as one searcher over all its shards.
+     */
     @NotNull
     public static IndexSearcher createSearcher(String indexDir, @NotNull String similarityStr) {
         Similarity similarity = getSimilarity(similarityStr);
 
+        try {
+            if (ShardedIndexSearcher.numShards(indexDir) > 0) {
+                int numThreads = Runtime.getRuntime().availableProcessors();
+                IndexSearcher searcher = ShardedIndexSearcher.open(indexDir, numThreads);
+                searcher.setSimilarity(similarity);
+                return searcher;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         Directory dir = null;
         try {
             dir = FSDirectory.open((new File(indexDir).toPath()));
@@ -95,6 +110,10 @@ public class LuceneHelper {
     }
     @Nullable
     public static Document searchIndex(String field, String query, @NotNull IndexSearcher searcher)throws IOException, ParseException {
+        if (searcher instanceof ShardedIndexSearcher && field.equals("Id")) {
+            // Only the shard owning the id can have it
+            return ((ShardedIndexSearcher) searcher).searchId(query);
+        }
         Term term = new Term(field,query);
         Query q = new TermQuery(term);
         TopDocs tds = searcher.search(q,1);
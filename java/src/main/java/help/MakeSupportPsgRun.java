@@ -10,14 +10,8 @@ import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Make a support passage run file using the method Entity Context Neighbour (ECN) of Chatterjee et al., 2019.
@@ -29,61 +23,124 @@ public class MakeSupportPsgRun {
 
     private final Map<String, LinkedHashMap<String, Double>> paraRankings;
     public  Map<String, LinkedHashMap<String, Double>> entityRankings;
-    protected final DecimalFormat df;
-    private final List<String> runStrings = new ArrayList<>();
     private final IndexSearcher indexSearcher;
     protected int total = 0;
-    private final AtomicInteger count = new AtomicInteger(0);
-    private final boolean parallel;
+    private final int numThreads;
 
     /**
      * Class to represent an Entity Context Document for an entity.
+     * The ECD is the list of passages (ordinals in the PassagePool of the query) which link to the entity.
      * @author Shubham Chatterjee
      * @version 05/31/2020
      */
     public static class EntityContextDocument {
 
-        private final List<Document> documentList;
-        private final String entity;
-        private final List<String> contextEntities;
+        private final int entity;
+        private final int[] passages;
 
         /**
          * Constructor.
-         * @param documentList List of documents in the pseudo-document
-         * @param entity The entity for which the pseudo-document is made
-         * @param contextEntities The list of entities in the pseudo-document
+         * @param entity Ordinal of the entity for which the pseudo-document is made
+         * @param passages Ordinals of the passages in the pseudo-document
          */
         @Contract(pure = true)
-        public EntityContextDocument(List<Document> documentList,
-                                     String entity,
-                                     List<String> contextEntities) {
-            this.documentList = documentList;
+        public EntityContextDocument(int entity, int[] passages) {
             this.entity = entity;
-            this.contextEntities = contextEntities;
+            this.passages = passages;
         }
 
         /**
-         * Method to get the list of documents in the ECD.
-         * @return String
+         * Method to get the entity of the ECD.
+         * @return Ordinal of the entity
          */
-        public List<Document> getDocumentList() {
-            return this.documentList;
+        public int getEntity() {
+            return this.entity;
         }
 
         /**
-         * Method to get the entity of the ECD.
-         * @return String
+         * Method to get the passages in the ECD.
+         * @return Ordinals of the passages
          */
-        public String getEntity() {
-            return this.entity;
+        public int[] getPassages() {
+            return this.passages;
         }
+    }
+
+    /**
+     * The passages retrieved for a query as sparse entity vectors.
+     * Every passage is fetched from the index and parsed once; only its id and the ordinals of the entities it
+     * links to (in link order, with repetitions) are kept.
+     * An inverted index gives, for every entity, the passages linking to it in the order of the passage ranking.
+     */
+    protected static class PassagePool {
+        private final OrdinalDictionary entityDictionary = new OrdinalDictionary(256);
+        private final List<String> paraIds = new ArrayList<>();
+        private final List<int[]> paraEntities = new ArrayList<>();
+        private int[][] postings = new int[16][];
+        private int[] postingsSize = new int[16];
 
         /**
-         * Method to get the list of context entities in the ECD.
-         * @return ArrayList
+         * Add the next passage of the ranking.
+         * @param paraId Id of the passage
+         * @param entityList Entities linked in the passage
          */
-        public List<String> getEntityList() {
-            return this.contextEntities;
+        void add(String paraId, @NotNull List<String> entityList) {
+            int ord = paraIds.size();
+            int[] entities = new int[entityList.size()];
+            for (int i = 0; i < entities.length; i++) {
+                entities[i] = entityDictionary.ordinal(entityList.get(i));
+                post(entities[i], ord);
+            }
+            paraIds.add(paraId);
+            paraEntities.add(entities);
+        }
+
+        private void post(int entity, int ord) {
+            if (entity >= postings.length) {
+                int newLength = Math.max(postings.length << 1, entity + 1);
+                postings = Arrays.copyOf(postings, newLength);
+                postingsSize = Arrays.copyOf(postingsSize, newLength);
+            }
+            int[] list = postings[entity];
+            int size = postingsSize[entity];
+            // An entity linked several times in a passage is posted once
+            if (size > 0 && list[size - 1] == ord) {
+                return;
+            }
+            if (list == null) {
+                list = postings[entity] = new int[4];
+            } else if (size == list.length) {
+                list = postings[entity] = Arrays.copyOf(list, size << 1);
+            }
+            list[size] = ord;
+            postingsSize[entity] = size + 1;
+        }
+
+        /**
+         * Ordinal of the entity, or -1 if no passage of the query links to it.
+         */
+        int find(String entityId) {
+            return entityDictionary.find(entityId);
+        }
+
+        /**
+         * Passages linking to the entity, in the order of the passage ranking.
+         */
+        @NotNull
+        int[] getPostings(int entity) {
+            return Arrays.copyOf(postings[entity], postingsSize[entity]);
+        }
+
+        int numEntities() {
+            return entityDictionary.size();
+        }
+
+        String getParaId(int ord) {
+            return paraIds.get(ord);
+        }
+
+        int[] getEntities(int ord) {
+            return paraEntities.get(ord);
         }
     }
 
@@ -92,152 +149,272 @@ public class MakeSupportPsgRun {
                              String entityRunFile,
                              String outFile,
                              boolean parallel) {
+        this(paraIndex, paraRunFile, entityRunFile, outFile,
+                parallel ? Runtime.getRuntime().availableProcessors() : 1);
+    }
 
-        df = new DecimalFormat("#.####");
-        df.setRoundingMode(RoundingMode.CEILING);
+    /**
+     * @param numThreads Number of queries processed at the same time (1 to process them serially).
+     */
+    public MakeSupportPsgRun(String paraIndex,
+                             String paraRunFile,
+                             String entityRunFile,
+                             String outFile,
+                             int numThreads) {
+        this(paraIndex, paraRunFile, entityRunFile, outFile, numThreads, false);
+    }
+
+    /**
+     * @param numThreads Number of queries processed at the same time (1 to process them serially).
+     * @param streaming If true, the two run files are read query by query instead of being loaded into memory.
+     *                  Both runs must then be sorted by query id (e.g. LC_ALL=C sort -s -k1,1 run > run.sorted).
+     */
+    public MakeSupportPsgRun(String paraIndex,
+                             String paraRunFile,
+                             String entityRunFile,
+                             String outFile,
+                             int numThreads,
+                             boolean streaming) {
 
-        this.parallel = parallel;
+        this.numThreads = Math.max(1, numThreads);
 
         System.out.print("Setting up paragraph index...");
         this.indexSearcher = LuceneHelper.createSearcher(paraIndex, "bm25");
         System.out.println("[Done].");
 
-        System.out.print("Loading passage rankings...");
-        paraRankings = Utilities.readRunFile(paraRunFile);
-        System.out.println("[Done].");
+        if (streaming) {
+            paraRankings = null;
+            entityRankings = null;
+            System.out.print("Counting queries...");
+            total = RunFileReader.countQueries(entityRunFile);
+            System.out.println("[Done].");
 
-        System.out.print("Loading entity rankings...");
-        entityRankings = Utilities.readRunFile(entityRunFile);
-        System.out.println("[Done].");
+            try (StreamingQueries queries = new StreamingQueries(paraRunFile, entityRunFile)) {
+                doTask(queries, outFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            System.out.print("Loading passage rankings...");
+            paraRankings = Utilities.readRunFile(paraRunFile);
+            System.out.println("[Done].");
 
-        doTask(outFile);
+            System.out.print("Loading entity rankings...");
+            entityRankings = Utilities.readRunFile(entityRunFile);
+            System.out.println("[Done].");
 
+            total = entityRankings.size();
+            doTask(new InMemoryQueries(), outFile);
+        }
+
+    }
+
+    /**
+     * The entity and passage rankings of one query.
+     */
+    private static class QueryRankings {
+        private final String queryId;
+        private final Set<String> entities;
+        private final List<String> paras;
+
+        QueryRankings(String queryId, Set<String> entities, List<String> paras) {
+            this.queryId = queryId;
+            this.entities = entities;
+            this.paras = paras;
+        }
     }
 
+    /**
+     * Queries of the entity run, with the rankings loaded in memory.
+     */
+    private class InMemoryQueries implements Iterator<QueryRankings> {
+        private final Iterator<String> queryIds = entityRankings.keySet().iterator();
 
+        @Override
+        public boolean hasNext() {
+            return queryIds.hasNext();
+        }
 
-    private void writeRunFile(@NotNull List<String> runStrings, String filePath) {
-        BufferedWriter out = null;
-        try {
-            out = new BufferedWriter(new FileWriter(filePath,true));
+        @Override
+        public QueryRankings next() {
+            String queryId = queryIds.next();
+            LinkedHashMap<String, Double> paraRanking = paraRankings.get(queryId);
+            List<String> paraList = paraRanking == null
+                    ? new ArrayList<>()
+                    : new ArrayList<>(paraRanking.keySet());
+            return new QueryRankings(queryId, entityRankings.get(queryId).keySet(), paraList);
+        }
+    }
 
-            for(String s : runStrings) {
-                if (s != null) {
-                    out.write(s);
-                    out.newLine();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+    /**
+     * Queries of the entity run, read together with the passage run one query at a time.
+     * Both runs are sorted by query id, so they are merged like two sorted lists: the run which is behind is
+     * advanced until both are on the same query. A query missing from either run has no ECN scores and is skipped.
+     */
+    private static class StreamingQueries implements Iterator<QueryRankings>, Closeable {
+        private final RunFileReader paraRun;
+        private final RunFileReader entityRun;
+        private QueryRankings next;
+
+        StreamingQueries(String paraRunFile, String entityRunFile) throws IOException {
+            this.paraRun = new RunFileReader(paraRunFile);
+            this.entityRun = new RunFileReader(entityRunFile);
+            advance(paraRun, null);
+            advance(entityRun, null);
+            next = read();
+        }
+
+        @Nullable
+        private QueryRankings read() {
             try {
-                if(out != null) {
-                    out.close();
-                } else {
-                    System.out.println("Buffer has not been initialized!");
+                while (paraRun.getQueryId() != null && entityRun.getQueryId() != null) {
+                    int cmp = paraRun.getQueryId().compareTo(entityRun.getQueryId());
+                    if (cmp < 0) {
+                        advance(paraRun, paraRun.getQueryId());
+                    } else if (cmp > 0) {
+                        advance(entityRun, entityRun.getQueryId());
+                    } else {
+                        QueryRankings query = new QueryRankings(entityRun.getQueryId(),
+                                entityRun.getRanking().keySet(),
+                                new ArrayList<>(paraRun.getRanking().keySet()));
+                        advance(paraRun, paraRun.getQueryId());
+                        advance(entityRun, entityRun.getQueryId());
+                        return query;
+                    }
                 }
+                return null;
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void advance(@NotNull RunFileReader run, String previous) throws IOException {
+            if (run.next() && previous != null && run.getQueryId().compareTo(previous) < 0) {
+                throw new IllegalStateException("Run file is not sorted by query id: " + run.getQueryId()
+                        + " comes after " + previous);
             }
         }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public QueryRankings next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            QueryRankings query = next;
+            next = read();
+            return query;
+        }
+
+        @Override
+        public void close() throws IOException {
+            paraRun.close();
+            entityRun.close();
+        }
     }
+
     /**
      * Method to calculate the feature.
-     * Works in parallel using Java 8 parallelStreams.
-     * DEFAULT THREAD POOL SIE = NUMBER OF PROCESSORS
-     * USE : System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "N") to set the thread pool size
+     * In parallel mode the queries are processed by a fixed pool of numThreads threads (see OrderedExecutor). Each
+     * query fills its own buffer of run strings, and the buffers are written to the run file in query order as soon
+     * as they are ready, so at most a window of 2 * numThreads queries is held in memory.
+     * @param queries Rankings of the queries, in the order in which they are written.
      * @param outputFilePath String Path to the output file.
      */
 
-    private  void doTask(String outputFilePath) {
-        Set<String> querySet = entityRankings.keySet();
-        total = querySet.size();
-        if (parallel) {
-            System.out.println("Using Parallel Streams.");
-            int parallelism = ForkJoinPool.commonPool().getParallelism();
-            int numOfCores = Runtime.getRuntime().availableProcessors();
-            System.out.println("Number of available processors = " + numOfCores);
-            System.out.println("Number of threads generated = " + parallelism);
-
-            if (parallelism == numOfCores - 1) {
-                System.err.println("WARNING: USING ALL AVAILABLE PROCESSORS");
-                System.err.println("USE: \"-Djava.util.concurrent.ForkJoinPool.common.parallelism=N\" " +
-                        "to set the number of threads used");
-            }
-            // Do in parallel
-            querySet.parallelStream().forEach(this::findSupportPsg);
-        } else {
-            System.out.println("Using Sequential Streams.");
+    private  void doTask(Iterator<QueryRankings> queries, String outputFilePath) {
+        ProgressBar pb = new ProgressBar("Progress", total);
+        OrderedExecutor executor = new OrderedExecutor(numThreads);
+        System.out.println(numThreads > 1 ? "Using " + numThreads + " threads." : "Using a single thread.");
 
-            // Do in serial
-            ProgressBar pb = new ProgressBar("Progress", querySet.size());
-            for (String q : querySet) {
-                findSupportPsg(q);
-                pb.step();
-            }
-            pb.close();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outputFilePath, true))) {
+            executor.run(queries, query -> query.queryId, this::findSupportPsg,
+                    runStrings -> writeRunStrings(runStrings, out), pb::step);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
         }
+        pb.close();
+        executor.report("Run file", outputFilePath);
+    }
 
-
-        // Create the run file
-        System.out.print("Writing to run file.....");
-        writeRunFile(runStrings, outputFilePath);
-        System.out.println("[Done].");
-        System.out.println("Run file written at: " + outputFilePath);
+    private void writeRunStrings(@NotNull List<String> runStrings, @NotNull BufferedWriter out) throws IOException {
+        for (String s : runStrings) {
+            out.write(s);
+            out.newLine();
+        }
+        out.flush();
     }
-    private void findSupportPsg(String queryId) {
 
-        Set<String> retEntitySet = entityRankings.get(queryId).keySet();
-        List<String> paraList = new ArrayList<>(paraRankings.get(queryId).keySet());
+    @NotNull
+    private List<String> findSupportPsg(@NotNull QueryRankings query) {
+        List<String> runStrings = new ArrayList<>();
+
+        String queryId = query.queryId;
+        Set<String> retEntitySet = query.entities;
+        List<String> paraList = query.paras;
+        PassagePool passagePool = makePassagePool(paraList);
+
+        // Entities retrieved for the query (as ordinals of the pool); entities no passage links to can be ignored
+        boolean[] retrieved = new boolean[passagePool.numEntities()];
         for (String entityId : retEntitySet) {
-            EntityContextDocument d = createECD(entityId, paraList);
-            if (d != null) {
-                List<String> contextEntityList = d.getEntityList();
-                Map<String, Double> freqDist = getDistribution(contextEntityList, retEntitySet);
-                Map<String, Double> scoreMap = scoreDoc(d, freqDist);
-                makeRunStrings(queryId, entityId, scoreMap);
+            int entity = passagePool.find(entityId);
+            if (entity >= 0) {
+                retrieved[entity] = true;
             }
         }
 
-        if (parallel) {
-            count.getAndIncrement();
-            System.out.println("Done query: " + queryId + " ( " + count + "/" + total + " ) ");
-        }
+        IntIntHashMap freqMap = new IntIntHashMap(256);
+        IntDoubleHashMap freqDist = new IntDoubleHashMap(256);
 
+        for (String entityId : retEntitySet) {
+            EntityContextDocument d = createECD(entityId, passagePool);
+            if (d != null) {
+                getDistribution(d, passagePool, retrieved, freqMap, freqDist);
+                Map<String, Double> scoreMap = scoreDoc(d, passagePool, freqDist);
+                makeRunStrings(queryId, entityId, scoreMap, runStrings);
+            }
+        }
+        return runStrings;
     }
-    @Nullable
-    protected EntityContextDocument createECD(String entityId,
-                                              @NotNull List<String> paraList) {
-        List<Document> documentList = new ArrayList<>();
-        List<String> contextEntityList = new ArrayList<>();
+    /**
+     * Fetch the passages of the query and parse their entities once.
+     * Passages which are not in the index or do not have any entities are left out, as they can not be in any ECD.
+     * @param paraList Passages retrieved for the query
+     * @return PassagePool
+     */
+    @NotNull
+    protected PassagePool makePassagePool(@NotNull List<String> paraList) {
+        PassagePool passagePool = new PassagePool();
         for (String paraId : paraList) {
             try {
                 Document doc = LuceneHelper.searchIndex("Id", paraId, indexSearcher);
                 if (doc != null) {
-                    // List<String> entityList = Arrays.asList(doc.get("OutlinkIds").split("\n"));
                     List<String> entityList = getEntitiesInPara(doc);
-
-                    if (entityList.isEmpty()) {
-                        // If the document does not have any entities then ignore
-                        continue;
-                    }
-                    if (entityList.contains(entityId)) {
-                        documentList.add(doc);
-                        contextEntityList.addAll(entityList);
+                    if (!entityList.isEmpty()) {
+                        passagePool.add(doc.get("Id"), entityList);
                     }
                 }
-
             } catch (IOException | ParseException e) {
                 e.printStackTrace();
             }
-
         }
+        return passagePool;
+    }
+
+    @Nullable
+    protected EntityContextDocument createECD(String entityId,
+                                              @NotNull PassagePool passagePool) {
+        int entity = passagePool.find(entityId);
 
         // If there are no documents in the pseudo-document
-        if (documentList.size() == 0) {
+        if (entity < 0) {
             return null;
         }
-        return new EntityContextDocument(documentList, entityId, contextEntityList);
+        return new EntityContextDocument(entity, passagePool.getPostings(entity));
     }
 
     @NotNull
@@ -260,62 +437,71 @@ public class MakeSupportPsgRun {
         return entityList;
     }
 
-    @NotNull
-    protected Map<String, Double> getDistribution(@NotNull List<String> contextEntityList,
-                                                  Set<String> retEntitySet) {
-
-        HashMap<String, Integer> freqMap = new HashMap<>();
+    /**
+     * Distribution of the retrieved entities co-occurring with the entity in its ECD.
+     * @param d ECD of the entity
+     * @param passagePool Passages of the query
+     * @param retrieved Entities retrieved for the query
+     * @param freqMap Scratch map for the frequencies
+     * @param freqDist Filled with the distribution, Key = entity ordinal and Value = probability
+     */
+    protected void getDistribution(@NotNull EntityContextDocument d,
+                                   @NotNull PassagePool passagePool,
+                                   boolean[] retrieved,
+                                   @NotNull IntIntHashMap freqMap,
+                                   @NotNull IntDoubleHashMap freqDist) {
+        freqMap.clear();
 
         // For every co-occurring entity do
-        for (String entityID : contextEntityList) {
-            // If the entity also occurs in the list of entities retrieved for the query then
-            if ( retEntitySet.contains(entityID)) {
-                freqMap.compute(entityID, (t, oldV) -> (oldV == null) ? 1 : oldV + 1);
+        for (int passage : d.getPassages()) {
+            for (int entity : passagePool.getEntities(passage)) {
+                // If the entity also occurs in the list of entities retrieved for the query then
+                if (retrieved[entity]) {
+                    freqMap.addTo(entity, 1);
+                }
             }
         }
-        return  toDistribution(freqMap);
+        toDistribution(freqMap, freqDist);
     }
 
-    @NotNull
-    protected Map<String, Double> toDistribution (@NotNull Map<String, Integer> freqMap) {
-        Map<String, Double> dist = new HashMap<>();
+    protected void toDistribution (@NotNull IntIntHashMap freqMap, @NotNull IntDoubleHashMap freqDist) {
+        freqDist.clear();
 
         // Calculate the normalizer
-        int norm = 0;
-        for (int val : freqMap.values()) {
-            norm += val;
-        }
+        long norm = freqMap.sum();
 
         // Normalize the map
-        for (String word: freqMap.keySet()) {
-            int freq = freqMap.get(word);
-            double normFreq = (double) freq / norm;
-            normFreq = Double.parseDouble(df.format(normFreq));
-            if (! (normFreq < 0.0d) ) {
-                dist.put(word, normFreq);
-            }
-        }
-        return dist;
+        freqMap.forEach((entity, freq) -> freqDist.put(entity, roundUp(freq, norm)));
+    }
+
+    /**
+     * The probability freq / norm rounded up to 4 decimal places.
+     * This is what formatting with DecimalFormat("#.####") in CEILING mode and parsing back used to give:
+     * the rounding is done exactly on integers and k / 10000.0 is the double closest to the decimal k / 10000.
+     * @param freq Frequency
+     * @param norm Normalizer (greater than 0)
+     * @return double
+     */
+    @Contract(pure = true)
+    protected static double roundUp(long freq, long norm) {
+        long k = (freq * 10000L + norm - 1) / norm;
+        return k / 10000.0d;
     }
 
     @NotNull
-    protected Map<String, Double> scoreDoc(@NotNull EntityContextDocument d, Map<String, Double> freqMap) {
+    protected Map<String, Double> scoreDoc(@NotNull EntityContextDocument d,
+                                           @NotNull PassagePool passagePool,
+                                           @NotNull IntDoubleHashMap freqDist) {
         Map<String, Double> scoreMap = new HashMap<>();
 
-        // Get the list of documents in the pseudo-document corresponding to the entity
-        List<Document> documents = d.getDocumentList();
-
-        // For every document do
-        for (Document doc : documents) {
+        // For every passage in the pseudo-document do
+        for (int passage : d.getPassages()) {
 
-            // Get the paragraph id of the document
-            String paraId = doc.getField("Id").stringValue();
-
-            // Get the score of the document
-            double score = getParaScore(doc, freqMap);
+            // Get the score of the passage
+            double score = getParaScore(passagePool.getEntities(passage), freqDist);
 
             // Store the paragraph id and score in a HashMap
-            scoreMap.put(paraId, score);
+            scoreMap.put(passagePool.getParaId(passage), score);
         }
 
         return Utilities.sortByValueDescending(scoreMap);
@@ -326,31 +512,22 @@ public class MakeSupportPsgRun {
      * Method to find the score of a paragraph.
      * This method looks at all the entities in the paragraph and calculates the score from them.
      * For every entity in the paragraph, if the entity has a score from the entity context pseudo-document,
-     * then sum over the entity scores and store the score in a HashMap.
+     * then sum over the entity scores.
      *
-     * @param doc  Document
-     * @param freqMap HashMap where Key = entity id and Value = score
-     * @return Integer
+     * @param entities Ordinals of the entities in the paragraph
+     * @param freqDist Map where Key = entity ordinal and Value = score
+     * @return double
      */
 
-    protected double getParaScore(@NotNull Document doc, Map<String, Double> freqMap) {
-
-        double entityScore, paraScore = 0;
-        // Get the entities in the paragraph
-        // Make an ArrayList from the String array
+    protected double getParaScore(@NotNull int[] entities, @NotNull IntDoubleHashMap freqDist) {
 
-        // String[] entityList = doc.get("OutlinkIds").split("\n");
-        List<String> entityList = getEntitiesInPara(doc);
+        double paraScore = 0;
         /* For every entity in the paragraph do */
-        for (String e : entityList) {
-            // Lookup this entity in the HashMap of frequencies for the entities
+        for (int e : entities) {
             // Sum over the scores of the entities to get the score for the passage
-            // Store the passage score in the HashMap
-            if (freqMap.containsKey(e)) {
-                entityScore = freqMap.get(e);
-                paraScore += entityScore;
+            if (freqDist.containsKey(e)) {
+                paraScore += freqDist.get(e);
             }
-
         }
         return paraScore;
     }
@@ -359,9 +536,11 @@ public class MakeSupportPsgRun {
      *
      * @param queryId  Query ID
      * @param scoreMap HashMap of the scores for each paragraph
+     * @param runStrings Run strings of the query
      */
 
-    private void makeRunStrings(String queryId, String entityId, Map<String, Double> scoreMap) {
+    private void makeRunStrings(String queryId, String entityId, Map<String, Double> scoreMap,
+                                List<String> runStrings) {
         LinkedHashMap<String, Double> paraScore = Utilities.sortByValueDescending(scoreMap);
         String runFileString;
         int rank = 1;
@@ -382,10 +561,15 @@ public class MakeSupportPsgRun {
         String paraRunFile = args[1];
         String entityRunFile = args[2];
         String outDir = args[3];
-        boolean parallel = args[4].equals("true");
+        // Number of threads, or true/false for all processors/one thread
+        int numThreads = args[4].equals("true") ? Runtime.getRuntime().availableProcessors()
+                : args[4].equals("false") ? 1 : Integer.parseInt(args[4]);
+
+        // Read the runs (sorted by query id) one query at a time instead of loading them
+        boolean streaming = args.length > 5 && args[5].equals("stream");
 
         String outFile = outDir + "/ECN-Test.run";
-        new MakeSupportPsgRun(indexDir, paraRunFile, entityRunFile, outFile, parallel);
+        new MakeSupportPsgRun(indexDir, paraRunFile, entityRunFile, outFile, numThreads, streaming);
 
     }
 
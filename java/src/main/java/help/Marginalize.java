@@ -2,9 +2,7 @@ package help;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 
 /**
@@ -12,14 +10,43 @@ import java.util.*;
  * The queries are matched against those in the candidate passage ranking.
  * If some query is not found in the support passage ranking, then it is copied over from the candidate ranking.
  *
+ * For support passage rankings larger than memory there is a streaming mode: both rankings are sorted on disk
+ * (see ExternalSort) and then read together query by query, so only the passages of one query are held in memory.
+ *
  * @version 1/30/2021
  * @author Shubham Chatterjee
  */
 
 public class Marginalize {
+    private final OrdinalDictionary paraDictionary = new OrdinalDictionary(1 << 16);
+    // Passages of the current query in streaming mode, reused from query to query
+    private final OrdinalDictionary queryParaDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap queryParaScores = new IntDoubleHashMap(1024);
+
     public Marginalize(String supportPassageRunFile,
                        String candidatePassageRunFile,
                        String newPassageRunFile) {
+        marginalizeInMemory(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile);
+    }
+
+    /**
+     * Marginalize in streaming mode.
+     * @param maxLinesInMemory Number of run file lines sorted in memory at a time.
+     */
+    public Marginalize(String supportPassageRunFile,
+                       String candidatePassageRunFile,
+                       String newPassageRunFile,
+                       int maxLinesInMemory) {
+        try {
+            marginalizeStreaming(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile, maxLinesInMemory);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void marginalizeInMemory(String supportPassageRunFile,
+                                     String candidatePassageRunFile,
+                                     String newPassageRunFile) {
 
 
 
@@ -28,7 +55,7 @@ public class Marginalize {
         Set<String> runStrings = new LinkedHashSet<>();
 
         System.out.print("Reading support passage run file...");
-        Map<String, Map<String, Map<String, Double>>> supportPassageRunFileMap = readSupportPassageRunFile(supportPassageRunFile);
+        Map<String, IntDoubleHashMap> supportPassageRunFileMap = readSupportPassageRunFile(supportPassageRunFile);
         System.out.println("[Done].");
 
         System.out.print("Reading candidate passage run file....");
@@ -54,39 +81,116 @@ public class Marginalize {
 
 
     }
+    private void marginalizeStreaming(String supportPassageRunFile,
+                                      String candidatePassageRunFile,
+                                      String newPassageRunFile,
+                                      int maxLinesInMemory) throws IOException {
+        // Spill files go next to the output, where there is room for a copy of the runs
+        File tmpDir = new File(newPassageRunFile).getAbsoluteFile().getParentFile();
+
+        System.out.print("Sorting support passage run file by (query, passage)....");
+        ExternalSort supportSort = new ExternalSort(ExternalSort.byFields(2), maxLinesInMemory, tmpDir);
+        List<File> supportSpills = supportSort.spill(supportPassageRunFile, Marginalize::toQueryParaScore);
+        System.out.println("[Done]. Spill files: " + supportSpills.size());
+
+        System.out.print("Sorting candidate passage run file by query....");
+        File sortedCandidates = File.createTempFile("candidates", ".run", tmpDir);
+        sortedCandidates.deleteOnExit();
+        new ExternalSort(ExternalSort.byFields(1), maxLinesInMemory, tmpDir)
+                .sort(candidatePassageRunFile, sortedCandidates.getPath());
+        System.out.println("[Done].");
+
+        System.out.println("Marginalizing over entities in support passage run file....");
+        int queries = 0, copied = 0;
+        try (ExternalSort.MergedLines support = supportSort.merge(supportSpills);
+             RunFileReader candidates = new RunFileReader(sortedCandidates.getPath());
+             BufferedWriter out = new BufferedWriter(new FileWriter(newPassageRunFile, true))) {
+
+            String[] current = support.hasNext() ? support.next().split(" ") : null;
+
+            while (candidates.next()) {
+                String queryID = candidates.getQueryId();
+
+                // Queries which are not in the candidate ranking are dropped
+                while (current != null && current[0].compareTo(queryID) < 0) {
+                    current = support.hasNext() ? support.next().split(" ") : null;
+                }
+
+                Map<String, Double> paraMap;
+                if (current != null && current[0].equals(queryID)) {
+                    // The lines of a passage are next to each other, so its entity scores are summed as they come
+                    queryParaDictionary.clear();
+                    queryParaScores.clear();
+                    while (current != null && current[0].equals(queryID)) {
+                        queryParaScores.addTo(queryParaDictionary.ordinal(current[1]), Double.parseDouble(current[2]));
+                        current = support.hasNext() ? support.next().split(" ") : null;
+                    }
+                    paraMap = queryParaScores.toSortedMap(queryParaDictionary);
+                } else {
+                    System.out.println("Did not find query: " + queryID);
+                    System.out.println("Populating the query with the passages found in the candidate passage run file");
+                    paraMap = candidates.getRanking();
+                    copied++;
+                }
+                writeRunFileStrings(queryID, paraMap, out);
+                queries++;
+            }
+        } finally {
+            if (!sortedCandidates.delete()) {
+                System.err.println("Could not delete: " + sortedCandidates);
+            }
+        }
+        System.out.println("[Done]. Queries: " + queries + " (" + copied + " copied from the candidate ranking)");
+        System.out.println("New run file written to: " + newPassageRunFile);
+    }
+
+    /**
+     * Reduce a line of the support passage run file to "QueryID ParaID Score", dropping the entity of the query.
+     */
     @NotNull
-    private Map<String, Map<String, Map<String, Double>>> readSupportPassageRunFile(String runFile) {
+    private static String toQueryParaScore(@NotNull String line) {
+        String[] fields = line.split(" ");
+        String queryID = fields[0].split("\\+")[0];
+        return queryID + " " + fields[2] + " " + fields[4];
+    }
 
-        Map<String, Map<String, Map<String, Double>>> queryMap = new HashMap<>();
+    private void writeRunFileStrings(String queryID,
+                                     @NotNull Map<String, Double> paraMap,
+                                     @NotNull BufferedWriter out) throws IOException {
+        int rank = 1;
+        Map<String, Double> sortedMap = Utilities.sortByValueDescending(paraMap);
+        for (String paraID : sortedMap.keySet()) {
+            double score = sortedMap.get(paraID);
+            out.write(queryID + " Q0 " + paraID + " " + rank++ + " " + score + " " + "Marginalize");
+            out.newLine();
+        }
+    }
+
+    /**
+     * Read the support passage run file and marginalize over the entities while reading.
+     * The score of a passage for a query is accumulated in a primitive map keyed by the passage ordinal,
+     * so no per-entity map is kept and no Double is boxed per line.
+     * @param runFile Support passage run file.
+     * @return Map where Key = QueryID and Value = Map of (Passage ordinal in paraDictionary, Score).
+     */
+    @NotNull
+    private Map<String, IntDoubleHashMap> readSupportPassageRunFile(String runFile) {
+
+        Map<String, IntDoubleHashMap> queryMap = new HashMap<>();
 
         BufferedReader in = null;
         String line;
-        Map<String, Map<String, Double>> paraMap;
-        Map<String, Double> entityMap;
 
         try {
             in = new BufferedReader(new FileReader(runFile));
             while ((line = in.readLine()) != null) {
                 String[] fields = line.split(" ");
                 String queryID = fields[0].split("\\+")[0];
-                String entityID = fields[0].split("\\+")[1];
                 String paraID = fields[2];
                 double paraScore = Double.parseDouble(fields[4]);
 
-                if (queryMap.containsKey(queryID)) {
-                    paraMap = queryMap.get(queryID);
-                } else {
-                    paraMap = new HashMap<>();
-                    //System.out.println(queryID);
-                }
-                if (paraMap.containsKey(paraID)) {
-                    entityMap = paraMap.get(paraID);
-                } else {
-                    entityMap = new HashMap<>();
-                }
-                entityMap.put(entityID, paraScore);
-                paraMap.put(paraID, entityMap);
-                queryMap.put(queryID, paraMap);
+                queryMap.computeIfAbsent(queryID, k -> new IntDoubleHashMap())
+                        .addTo(paraDictionary.ordinal(paraID), paraScore);
 
             }
         } catch (IOException e) {
@@ -105,20 +209,12 @@ public class Marginalize {
         return queryMap;
     }
 
-    private void marginalize(@NotNull Map<String, Map<String, Map<String, Double>>> supportPassageRunFileMap,
+    private void marginalize(@NotNull Map<String, IntDoubleHashMap> supportPassageRunFileMap,
                              Map<String, LinkedHashMap<String, Double>> generatedRunFileMap) {
 
         Set<String> querySet = supportPassageRunFileMap.keySet();
         for (String queryID : querySet) {
-            Map<String, Map<String, Double>> paraMap = supportPassageRunFileMap.get(queryID);
-            LinkedHashMap<String, Double> innerMap = new LinkedHashMap<>();
-            Set<String> paraSet = paraMap.keySet();
-            for (String paraID : paraSet) {
-                Map<String, Double> entityMap = paraMap.get(paraID);
-                double score = sum(entityMap);
-                innerMap.put(paraID, score);
-            }
-            generatedRunFileMap.put(queryID, innerMap);
+            generatedRunFileMap.put(queryID, supportPassageRunFileMap.get(queryID).toSortedMap(paraDictionary));
         }
     }
     private void makeNewRunFile(Map<String, LinkedHashMap<String, Double>> generatedRunFileMap,
@@ -158,21 +254,17 @@ public class Marginalize {
         }
     }
 
-    /**
-     * Sum over elements in a Map.
-     * Helpful for marginalization.
-     * @param map Map
-     * @return double
-     */
-    private double sum(@NotNull Map<String, Double> map) {
-        return map.values().stream().mapToDouble(Double::valueOf).sum();
-    }
-
     public static void main(@NotNull String[] args) {
         String supportPassageRunFile = args[0];
         String candidatePassageRunFile = args[1];
         String newPassageRunFile = args[2];
-        new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile);
+        if (args.length > 3) {
+            // Streaming mode: number of lines sorted in memory at a time
+            new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile,
+                    Integer.parseInt(args[3]));
+        } else {
+            new Marginalize(supportPassageRunFile, candidatePassageRunFile, newPassageRunFile);
+        }
     }
 
 }
@@ -0,0 +1,166 @@
+package help;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Score the documents of an index under several similarities at once.
+ * The query must be a disjunction (SHOULD clauses) of, possibly boosted, term queries, which is what
+ * Utilities.toQuery() and Utilities.toRm3Query() build. Term frequencies, document lengths (norms) and the
+ * collection and term statistics do not depend on the similarity, so they are read in one pass over the
+ * postings of each query term and every similarity scores the same (freq, norm) pairs.
+ * The score of a document is the sum of the scores of the query terms it matches, as in a BooleanQuery.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class MultiSimilarityScorer {
+
+    /**
+     * Search the index for the given query and return top n hits for every similarity.
+     * @param query BooleanQuery Query to search
+     * @param n Integer Top hits for the query
+     * @param searcher IndexSearcher over the index (its own similarity is not used)
+     * @param similarities Similarities to score with
+     * @return One Map per similarity (in the same order), where Key = Document Id and Value = Score,
+     * sorted by descending score.
+     */
+    @NotNull
+    public static List<Map<String, Double>> searchIndex(@NotNull BooleanQuery query,
+                                                        int n,
+                                                        @NotNull IndexSearcher searcher,
+                                                        @NotNull List<Similarity> similarities) throws IOException {
+        int maxDoc = searcher.getIndexReader().maxDoc();
+        double[][] scores = new double[similarities.size()][maxDoc];
+        boolean[] matched = new boolean[maxDoc];
+
+        for (BooleanClause clause : query.clauses()) {
+            Query q = clause.getQuery();
+            float boost = 1.0f;
+            while (q instanceof BoostQuery) {
+                boost *= ((BoostQuery) q).getBoost();
+                q = ((BoostQuery) q).getQuery();
+            }
+            if (clause.getOccur() != BooleanClause.Occur.SHOULD || !(q instanceof TermQuery)) {
+                throw new IllegalArgumentException("Only disjunctions of term queries are supported: " + clause);
+            }
+            scoreTerm(((TermQuery) q).getTerm(), boost, searcher, similarities, scores, matched);
+        }
+        return toResults(scores, matched, n, searcher);
+    }
+
+    private static void scoreTerm(@NotNull Term term,
+                                  float boost,
+                                  @NotNull IndexSearcher searcher,
+                                  @NotNull List<Similarity> similarities,
+                                  double[][] scores,
+                                  boolean[] matched) throws IOException {
+
+        CollectionStatistics collectionStats = searcher.collectionStatistics(term.field());
+        if (collectionStats == null) {
+            // No document has this field
+            return;
+        }
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+        // Term statistics summed over all segments
+        long docFreq = 0, totalTermFreq = 0;
+        for (LeafReaderContext context : leaves) {
+            TermsEnum termsEnum = seek(context.reader(), term);
+            if (termsEnum != null) {
+                docFreq += termsEnum.docFreq();
+                totalTermFreq += termsEnum.totalTermFreq();
+            }
+        }
+        if (docFreq == 0) {
+            return;
+        }
+        TermStatistics termStats = new TermStatistics(term.bytes(), docFreq, totalTermFreq);
+        Similarity.SimScorer[] simScorers = new Similarity.SimScorer[similarities.size()];
+        for (int i = 0; i < simScorers.length; i++) {
+            simScorers[i] = similarities.get(i).scorer(boost, collectionStats, termStats);
+        }
+
+        // One traversal of the postings, every similarity scores each (freq, norm) pair
+        for (LeafReaderContext context : leaves) {
+            LeafReader leafReader = context.reader();
+            TermsEnum termsEnum = seek(leafReader, term);
+            if (termsEnum == null) {
+                continue;
+            }
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+            NumericDocValues norms = leafReader.getNormValues(term.field());
+            Bits liveDocs = leafReader.getLiveDocs();
+
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                float freq = postings.freq();
+                long norm = 1L;
+                if (norms != null && norms.advanceExact(doc)) {
+                    norm = norms.longValue();
+                }
+                int globalDoc = context.docBase + doc;
+                matched[globalDoc] = true;
+                for (int i = 0; i < simScorers.length; i++) {
+                    scores[i][globalDoc] += simScorers[i].score(freq, norm);
+                }
+            }
+        }
+    }
+
+    private static TermsEnum seek(@NotNull LeafReader leafReader, @NotNull Term term) throws IOException {
+        Terms terms = leafReader.terms(term.field());
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        return termsEnum.seekExact(term.bytes()) ? termsEnum : null;
+    }
+
+    @NotNull
+    private static List<Map<String, Double>> toResults(@NotNull double[][] scores,
+                                                       @NotNull boolean[] matched,
+                                                       int n,
+                                                       @NotNull IndexSearcher searcher) throws IOException {
+        List<Integer> matchedDocs = new ArrayList<>();
+        for (int doc = 0; doc < matched.length; doc++) {
+            if (matched[doc]) {
+                matchedDocs.add(doc);
+            }
+        }
+        // The Id of a document is loaded once, whatever the number of similarities
+        Map<Integer, String> ids = new HashMap<>();
+        List<Map<String, Double>> results = new ArrayList<>();
+
+        for (double[] simScores : scores) {
+            // Same order as TopDocs: descending score, ties by ascending docID
+            List<Integer> ranked = new ArrayList<>(matchedDocs);
+            ranked.sort((d1, d2) -> {
+                int c = Float.compare((float) simScores[d2], (float) simScores[d1]);
+                return c != 0 ? c : Integer.compare(d1, d2);
+            });
+            Map<String, Double> result = new LinkedHashMap<>();
+            for (int doc : ranked.subList(0, Math.min(n, ranked.size()))) {
+                String id = ids.get(doc);
+                if (id == null) {
+                    Document document = searcher.doc(doc);
+                    id = document.get("Id");
+                    ids.put(doc, id);
+                }
+                result.put(id, (double) (float) simScores[doc]);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+}
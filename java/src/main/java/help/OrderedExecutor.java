@@ -0,0 +1,157 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Run a task for every item (e.g. every query) on a pool of threads and write the results in the order of the items.
+ * At most a window of 2 * numThreads items is in flight, so only that many results are held in memory.
+ * An item whose task throws is skipped and its key recorded, and the remaining items are still processed, so one bad
+ * item does not cut the output short. With one thread the tasks run in the calling thread, with the same handling.
+ *
+ * Usage:
+ *   OrderedExecutor executor = new OrderedExecutor(numThreads);
+ *   executor.run(queries, q -> q.id, q -> process(q), out::write, pb::step);
+ *   executor.report("Run file", outFile);
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class OrderedExecutor {
+    private final int numThreads;
+    private final List<String> failedKeys = new ArrayList<>();
+    private boolean finished = false;
+
+    /**
+     * Writes the result of an item.
+     */
+    public interface ResultWriter<R> {
+        void write(R result) throws IOException;
+    }
+
+    /**
+     * @param numThreads Number of items processed at the same time (1 to process them in the calling thread).
+     */
+    public OrderedExecutor(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Process the items and write their results in order.
+     * If the writer fails, the IOException is thrown and the output is incomplete (see report()).
+     * @param items Items; the next item is only taken when there is room in the window.
+     * @param keyOf Key of an item, reported if its task fails.
+     * @param task Task making the result of an item.
+     * @param writer Writes a result.
+     * @param afterEach Called after every item, written or failed (e.g. to step a progress bar).
+     */
+    public <T, R> void run(@NotNull Iterator<T> items,
+                           @NotNull Function<? super T, String> keyOf,
+                           @NotNull Function<? super T, ? extends R> task,
+                           @NotNull ResultWriter<? super R> writer,
+                           @NotNull Runnable afterEach) throws IOException {
+        if (numThreads == 1) {
+            while (items.hasNext()) {
+                T item = items.next();
+                R result;
+                try {
+                    result = task.apply(item);
+                } catch (RuntimeException e) {
+                    fail(keyOf.apply(item), e);
+                    afterEach.run();
+                    continue;
+                }
+                writer.write(result);
+                afterEach.run();
+            }
+            finished = true;
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        boolean done = false;
+        try {
+            Deque<Future<? extends R>> window = new ArrayDeque<>();
+            Deque<String> windowKeys = new ArrayDeque<>();
+            while (items.hasNext() || !window.isEmpty()) {
+                // Keep the window full, then write the oldest item once it is done
+                while (items.hasNext() && window.size() < 2 * numThreads) {
+                    T item = items.next();
+                    window.addLast(executor.submit(() -> task.apply(item)));
+                    windowKeys.addLast(keyOf.apply(item));
+                }
+                String key = windowKeys.removeFirst();
+                R result;
+                try {
+                    result = window.removeFirst().get();
+                } catch (ExecutionException e) {
+                    fail(key, e.getCause());
+                    afterEach.run();
+                    continue;
+                }
+                writer.write(result);
+                afterEach.run();
+            }
+            done = true;
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        } finally {
+            if (done) {
+                executor.shutdown();
+            } else {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void fail(String key, @NotNull Throwable cause) {
+        System.err.println("Failed on: " + key);
+        cause.printStackTrace();
+        failedKeys.add(key);
+    }
+
+    /**
+     * Keys of the items whose task failed, in order.
+     */
+    @NotNull
+    public List<String> getFailedKeys() {
+        return failedKeys;
+    }
+
+    /**
+     * Whether every item was taken and its result written or its failure recorded.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Print whether the output is complete, is missing the items which failed, or was cut short.
+     * @param what What was written, e.g. "Run file".
+     * @param file Path of the output.
+     */
+    public void report(String what, String file) {
+        if (!finished) {
+            System.err.println("Stopped early: " + what + " at " + file + " is incomplete.");
+        } else if (!failedKeys.isEmpty()) {
+            System.err.println(what + " written at: " + file + ", but without the " + failedKeys.size()
+                    + " items which failed: " + failedKeys);
+        } else {
+            System.out.println(what + " written at: " + file);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ordinals (0, 1, 2, ...) to strings in the order they are first seen.
+ * The dictionary is meant to live for the whole run so that the same string always gets the same ordinal.
+ * Strings can be looked up directly from a char buffer (for example the buffer of a CharTermAttribute),
+ * so a string that is already in the dictionary is resolved without allocating anything.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class OrdinalDictionary {
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int[] hashes;
+    private String[] strings;
+    private int size = 0;
+    private int mask;
+
+    public OrdinalDictionary() {
+        this(1024);
+    }
+
+    public OrdinalDictionary(int expectedSize) {
+        int capacity = tableSize(expectedSize);
+        this.slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        this.mask = capacity - 1;
+        this.hashes = new int[Math.max(16, expectedSize)];
+        this.strings = new String[hashes.length];
+    }
+
+    /**
+     * Get the ordinal of the string held in the first length chars of the buffer.
+     * The string is added to the dictionary if it is not already present.
+     * @param buffer Chars of the string.
+     * @param length Number of chars to use from the buffer.
+     * @return Ordinal of the string.
+     */
+    public int ordinal(@NotNull char[] buffer, int length) {
+        int hash = hash(buffer, length);
+        int slot = mix(hash) & mask;
+        int ord;
+        while ((ord = slots[slot]) != EMPTY) {
+            if (hashes[ord] == hash && matches(strings[ord], buffer, length)) {
+                return ord;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(new String(buffer, 0, length), hash, slot);
+    }
+
+    /**
+     * Get the ordinal of the string, adding it to the dictionary if it is not already present.
+     * @param string String to look up.
+     * @return Ordinal of the string.
+     */
+    public int ordinal(@NotNull String string) {
+        int hash = string.hashCode();
+        int slot = mix(hash) & mask;
+        int ord;
+        while ((ord = slots[slot]) != EMPTY) {
+            if (hashes[ord] == hash && strings[ord].equals(string)) {
+                return ord;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(string, hash, slot);
+    }
+
+    /**
+     * Get the ordinal of the string without adding it to the dictionary.
+     * @param string String to look up.
+     * @return Ordinal of the string or -1 if the string is not in the dictionary.
+     */
+    public int find(@NotNull String string) {
+        int hash = string.hashCode();
+        int slot = mix(hash) & mask;
+        int ord;
+        while ((ord = slots[slot]) != EMPTY) {
+            if (hashes[ord] == hash && strings[ord].equals(string)) {
+                return ord;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Get the string with the given ordinal.
+     * @param ord Ordinal returned by this dictionary.
+     * @return String
+     */
+    public String get(int ord) {
+        if (ord < 0 || ord >= size) {
+            throw new IndexOutOfBoundsException("No string with ordinal " + ord);
+        }
+        return strings[ord];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all strings but keep the capacity, so that ordinals start again from 0.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(slots, EMPTY);
+            Arrays.fill(strings, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private int add(String string, int hash, int slot) {
+        int ord = size++;
+        if (ord == strings.length) {
+            int newLength = strings.length << 1;
+            strings = Arrays.copyOf(strings, newLength);
+            hashes = Arrays.copyOf(hashes, newLength);
+        }
+        strings[ord] = string;
+        hashes[ord] = hash;
+        slots[slot] = ord;
+        if (size > (slots.length >> 1)) {
+            rehash();
+        }
+        return ord;
+    }
+
+    private void rehash() {
+        int capacity = slots.length << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int ord = 0; ord < size; ord++) {
+            int slot = mix(hashes[ord]) & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ord;
+        }
+    }
+
+    private static boolean matches(@NotNull String string, char[] buffer, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as String.hashCode() so that both lookup paths agree.
+     */
+    private static int hash(char[] buffer, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return h;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
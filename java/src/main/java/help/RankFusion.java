@@ -0,0 +1,298 @@
+package help;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Fuse several run files into one.
+ * Supported methods:
+ *   RRF:     sum over runs of w / (k + rank)  (Cormack et al., 2009; k = 0 gives the RRA of ReciprocalRankAggregation).
+ *   COMBSUM: sum over runs of w * normalized score (Fox and Shaw, 1994).
+ *   COMBMNZ: COMBSUM times the number of runs which retrieved the document.
+ * Scores are normalized per run and query with MINMAX, SUM or ZSCORE (or not at all with NONE).
+ * Every run has weight 1 unless given another weight.
+ *
+ * The runs are read one query at a time (see AlignedRunReader), so every run file must be sorted by query id.
+ * Queries are fused by a pool of threads and written in query order. Within a query the documents are mapped to
+ * ordinals and their scores accumulated in arrays indexed by ordinal, which every thread reuses from query to query.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class RankFusion {
+    public enum Method { RRF, COMBSUM, COMBMNZ }
+    public enum Normalization { NONE, MINMAX, SUM, ZSCORE }
+
+    private final Method method;
+    private final Normalization normalization;
+    private final int k;
+    private final double[] weights;
+    private final int numThreads;
+    private final FixedDecimalFormat decimalFormat;
+    private final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(Accumulator::new);
+
+    /**
+     * Scratch space of a thread: the ordinals of the documents of the query and their fused scores.
+     */
+    private static class Accumulator {
+        private final OrdinalDictionary docDictionary = new OrdinalDictionary(1024);
+        private double[] scores = new double[1024];
+        private int[] hits = new int[1024];
+        private int[] sortedDocs = new int[1024];
+        private double[] sortedScores = new double[1024];
+
+        void clear() {
+            int n = docDictionary.size();
+            Arrays.fill(scores, 0, n, 0.0d);
+            Arrays.fill(hits, 0, n, 0);
+            docDictionary.clear();
+        }
+
+        void add(String docId, double score) {
+            int doc = docDictionary.ordinal(docId);
+            if (doc >= scores.length) {
+                int newLength = Math.max(scores.length << 1, doc + 1);
+                scores = Arrays.copyOf(scores, newLength);
+                hits = Arrays.copyOf(hits, newLength);
+                sortedDocs = new int[newLength];
+                sortedScores = new double[newLength];
+            }
+            scores[doc] += score;
+            hits[doc]++;
+        }
+    }
+
+    /**
+     * @param runDir Directory of the run files to fuse, each sorted by query id.
+     * @param outFile Fused run file.
+     * @param method Fusion method.
+     * @param normalization Score normalization (used by COMBSUM and COMBMNZ).
+     * @param k Constant of RRF.
+     * @param runWeights Map where Key = Name of the run file and Value = Weight; other runs have weight 1.
+     * @param numThreads Number of queries fused at the same time.
+     * @param decimals Number of decimal places of the fused scores.
+     */
+    public RankFusion(String runDir,
+                      String outFile,
+                      Method method,
+                      Normalization normalization,
+                      int k,
+                      @NotNull Map<String, Double> runWeights,
+                      int numThreads,
+                      int decimals) {
+        this.method = method;
+        this.normalization = normalization;
+        this.k = k;
+        this.numThreads = Math.max(1, numThreads);
+        this.decimalFormat = new FixedDecimalFormat(decimals);
+
+        List<File> files = AlignedRunReader.listRunFiles(runDir);
+        this.weights = new double[files.size()];
+        Set<String> unused = new HashSet<>(runWeights.keySet());
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i).getName();
+            weights[i] = runWeights.getOrDefault(name, 1.0d);
+            unused.remove(name);
+        }
+        if (!unused.isEmpty()) {
+            System.err.println("No run file for the weights of: " + unused);
+        }
+
+        System.out.println("Fusing " + files.size() + " runs with " + method
+                + (method == Method.RRF ? " (k = " + k + ")" : " (" + normalization + ")"));
+        doTask(files, outFile);
+    }
+
+    private void doTask(@NotNull List<File> files, String outFile) {
+        ProgressBar pb = new ProgressBar("Progress",
+                files.isEmpty() ? 0 : RunFileReader.countQueries(files.get(0).getPath()));
+        OrderedExecutor executor = new OrderedExecutor(numThreads);
+
+        try (AlignedRunReader runs = new AlignedRunReader(files);
+             BufferedWriter out = new BufferedWriter(new FileWriter(outFile, true))) {
+            executor.run(new QueryIterator(runs), query -> query.queryId, query -> fuse(query.queryId, query.rankings),
+                    out::write, pb::step);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+        pb.close();
+        executor.report("Run file", outFile);
+    }
+
+    /**
+     * The rankings of one query in all runs.
+     */
+    private static class Query {
+        private final String queryId;
+        private final List<LinkedHashMap<String, Double>> rankings;
+
+        Query(String queryId, List<LinkedHashMap<String, Double>> rankings) {
+            this.queryId = queryId;
+            this.rankings = rankings;
+        }
+    }
+
+    /**
+     * The queries of an AlignedRunReader, read one at a time as they are taken.
+     */
+    private static class QueryIterator implements Iterator<Query> {
+        private final AlignedRunReader runs;
+        private Boolean hasNext = null;
+
+        QueryIterator(AlignedRunReader runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (hasNext == null) {
+                try {
+                    hasNext = runs.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Query next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            return new Query(runs.getQueryId(), runs.getRankings());
+        }
+    }
+
+    /**
+     * Fuse the rankings of a query.
+     * @param queryId Query
+     * @param rankings Ranking of every run, null for a run without the query.
+     * @return The run file lines of the query.
+     */
+    @NotNull
+    private String fuse(String queryId, @NotNull List<LinkedHashMap<String, Double>> rankings) {
+        Accumulator acc = accumulators.get();
+        acc.clear();
+
+        for (int run = 0; run < rankings.size(); run++) {
+            LinkedHashMap<String, Double> ranking = rankings.get(run);
+            if (ranking != null && !ranking.isEmpty()) {
+                accumulate(ranking, weights[run], acc);
+            }
+        }
+
+        int n = acc.docDictionary.size();
+        for (int doc = 0; doc < n; doc++) {
+            acc.sortedDocs[doc] = doc;
+            acc.sortedScores[doc] = method == Method.COMBMNZ ? acc.scores[doc] * acc.hits[doc] : acc.scores[doc];
+        }
+        // Ties are broken by the order in which the documents were first seen
+        IntDoubleHashMap.sortDescending(acc.sortedDocs, acc.sortedScores, n);
+
+        String tag = method.name();
+        StringBuilder sb = new StringBuilder(n * 48);
+        for (int i = 0; i < n; i++) {
+            sb.append(queryId).append(" Q0 ").append(acc.docDictionary.get(acc.sortedDocs[i]))
+                    .append(' ').append(i + 1).append(' ');
+            decimalFormat.format(acc.sortedScores[i], sb);
+            sb.append(' ').append(tag).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void accumulate(@NotNull LinkedHashMap<String, Double> ranking, double weight, @NotNull Accumulator acc) {
+        if (method == Method.RRF) {
+            int rank = 1;
+            for (String docId : ranking.keySet()) {
+                acc.add(docId, weight / (k + rank++));
+            }
+            return;
+        }
+
+        double[] stats = normalization == Normalization.NONE ? null : getStatistics(ranking.values());
+        for (Map.Entry<String, Double> entry : ranking.entrySet()) {
+            acc.add(entry.getKey(), weight * normalize(entry.getValue(), stats));
+        }
+    }
+
+    /**
+     * Statistics of the scores of a ranking needed by the normalization.
+     * @return {min, max, sum, mean, standard deviation}
+     */
+    @NotNull
+    private static double[] getStatistics(@NotNull Collection<Double> scores) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0, sumOfSquares = 0;
+        for (double s : scores) {
+            min = Math.min(min, s);
+            max = Math.max(max, s);
+            sum += s;
+            sumOfSquares += s * s;
+        }
+        int n = scores.size();
+        double mean = sum / n;
+        double variance = Math.max(0.0d, sumOfSquares / n - mean * mean);
+        return new double[]{min, max, sum, mean, Math.sqrt(variance)};
+    }
+
+    private double normalize(double score, @Nullable double[] stats) {
+        if (stats == null) {
+            return score;
+        }
+        switch (normalization) {
+            case MINMAX:
+                // A ranking whose scores are all equal puts all its documents at the top
+                return stats[1] > stats[0] ? (score - stats[0]) / (stats[1] - stats[0]) : 1.0d;
+            case SUM:
+                return stats[2] != 0 ? score / stats[2] : 0.0d;
+            case ZSCORE:
+                return stats[4] > 0 ? (score - stats[3]) / stats[4] : 0.0d;
+            default:
+                return score;
+        }
+    }
+
+    /**
+     * Parse run weights given as name=weight,name=weight,...
+     * @param arg Weights, or "-" for none.
+     * @return Map where Key = Name of the run file and Value = Weight.
+     */
+    @NotNull
+    public static Map<String, Double> parseWeights(@NotNull String arg) {
+        Map<String, Double> weights = new HashMap<>();
+        if (arg.equals("-") || arg.isEmpty()) {
+            return weights;
+        }
+        for (String pair : arg.split(",")) {
+            int eq = pair.lastIndexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected name=weight: " + pair);
+            }
+            weights.put(pair.substring(0, eq), Double.parseDouble(pair.substring(eq + 1)));
+        }
+        return weights;
+    }
+
+    public static void main(@NotNull String[] args) {
+        String runDir = args[0];
+        String outFile = args[1];
+        Method method = Method.valueOf(args[2].toUpperCase());
+        Normalization normalization = args.length > 3 ? Normalization.valueOf(args[3].toUpperCase())
+                : Normalization.NONE;
+        int k = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+        Map<String, Double> weights = args.length > 5 ? parseWeights(args[5]) : new HashMap<>();
+        int numThreads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+        int decimals = args.length > 7 ? Integer.parseInt(args[7]) : 6;
+        new RankFusion(runDir, outFile, method, normalization, k, weights, numThreads, decimals);
+    }
+}
@@ -3,24 +3,38 @@ package help;
 import me.tongfei.progressbar.ProgressBar;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 
 /**
  * Reciprocal Rank Aggregation of several rankings.
+ * In streaming mode the run files (each sorted by query id) are read together one query at a time, so only the
+ * rankings of the current query are held in memory, whatever the number of runs.
  *
  * @version 1/29/2021
  * @author Shubham Chatterjee
  */
 
 public class ReciprocalRankAggregation {
+    private final OrdinalDictionary idDictionary = new OrdinalDictionary();
+    private final IntDoubleHashMap scoreMap = new IntDoubleHashMap(1024);
+    private final FixedDecimalFormat decimalFormat = new FixedDecimalFormat(2);
 
     public ReciprocalRankAggregation(String runDir, String outFile) {
-        Map<String, Map<String, List<String>>> perQueryRankings = readRunFiles(runDir);
-        rra(perQueryRankings, outFile);
+        this(runDir, outFile, false);
+    }
+
+    /**
+     * @param streaming If true, read the run files query by query instead of loading them.
+     *                  Every run file must then be sorted by query id (e.g. LC_ALL=C sort -s -k1,1 run > run.sorted).
+     */
+    public ReciprocalRankAggregation(String runDir, String outFile, boolean streaming) {
+        if (streaming) {
+            rraStreaming(runDir, outFile);
+        } else {
+            Map<String, Map<String, List<String>>> perQueryRankings = readRunFiles(runDir);
+            rra(perQueryRankings, outFile);
+        }
     }
 
     private void rra(@NotNull Map<String, Map<String, List<String>>> perQueryRankings, String outFile) {
@@ -35,19 +49,56 @@ public class ReciprocalRankAggregation {
 
     }
 
+    /**
+     * Fuse the run files in lock-step, one query at a time (see AlignedRunReader).
+     * A run which does not have the query simply does not take part.
+     */
+    private void rraStreaming(String runDir, String outFile) {
+        // Runs are taken in name order, which is the order ties are broken in
+        List<File> files = AlignedRunReader.listRunFiles(runDir);
+
+        try (AlignedRunReader runs = new AlignedRunReader(files);
+             BufferedWriter out = new BufferedWriter(new FileWriter(outFile, true))) {
+            ProgressBar pb = new ProgressBar("Progress",
+                    files.isEmpty() ? 0 : RunFileReader.countQueries(files.get(0).getPath()));
+
+            Map<String, List<String>> rankings = new LinkedHashMap<>();
+            while (runs.next()) {
+                rankings.clear();
+                // Every line counts, as in readRunFile(): a document listed twice in a run is scored twice
+                List<List<String>> perRun = runs.getDocuments();
+                for (int i = 0; i < perRun.size(); i++) {
+                    if (perRun.get(i) != null) {
+                        rankings.put(files.get(i).getName(), perRun.get(i));
+                    }
+                }
+                for (String s : doTask(runs.getQueryId(), rankings)) {
+                    out.write(s);
+                    out.newLine();
+                }
+                pb.step();
+            }
+            pb.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @NotNull
     private Set<String> doTask(String queryId, @NotNull Map<String, List<String>> rankings) {
-        Map<String, Double> scoreMap = new LinkedHashMap<>();
+        // Ordinals are handed out in the order ids are first seen, so ties are exported in that order
+        idDictionary.clear();
+        scoreMap.clear();
 
         for (String file : rankings.keySet()) {
             List<String> list = rankings.get(file);
             for (int i = 0; i < list.size(); i++) {
                 String id = list.get(i);
                 double score = 1.0 / (i + 1);
-                scoreMap.compute(id, (t, oldV) -> (oldV == null) ? score : oldV + score);
+                scoreMap.addTo(idDictionary.ordinal(id), score);
             }
         }
-        return makeRunStrings(queryId, scoreMap);
+        return makeRunStrings(queryId, scoreMap.toSortedMap(idDictionary));
 
     }
     @NotNull
@@ -57,7 +108,7 @@ public class ReciprocalRankAggregation {
         int rank = 1;
         String runFileString;
         for (String id : sortedScoreMap.keySet()) {
-            String score = String.format("%.2f", sortedScoreMap.get(id));
+            String score = decimalFormat.format(sortedScoreMap.get(id));
             runFileString = queryId + " Q0 " + id + " " + rank++ + " " + score + " " + "RRA";
             runStrings.add(runFileString);
         }
@@ -127,6 +178,7 @@ public class ReciprocalRankAggregation {
     public static void main(@NotNull String[] args) {
         String runFileDir = args[0];
         String outFile = args[1];
-        new ReciprocalRankAggregation(runFileDir, outFile);
+        boolean streaming = args.length > 2 && args[2].equals("stream");
+        new ReciprocalRankAggregation(runFileDir, outFile, streaming);
     }
 }
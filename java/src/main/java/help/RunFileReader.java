@@ -0,0 +1,130 @@
+package help;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read a run file one query at a time.
+ * The lines of a query must be contiguous (which is how every run file we write is laid out), so only the ranking
+ * of the current query is held in memory. A query appearing again after its block has ended is reported as an error
+ * instead of being silently split.
+ *
+ * Usage:
+ *   while (reader.next()) { reader.getQueryId(); reader.getRanking(); }
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class RunFileReader implements Closeable {
+    private final String runFile;
+    private final BufferedReader br;
+    private final Set<String> seenQueries = new HashSet<>();
+    private String[] pending = null;
+    private String queryId = null;
+    private LinkedHashMap<String, Double> ranking = null;
+    private List<String> documents = null;
+
+    public RunFileReader(String runFile) throws IOException {
+        this.runFile = runFile;
+        this.br = new BufferedReader(new FileReader(runFile));
+        this.pending = readLine();
+    }
+
+    /**
+     * Move to the next query of the run file.
+     * @return False if there are no more queries.
+     */
+    public boolean next() throws IOException {
+        if (pending == null) {
+            queryId = null;
+            ranking = null;
+            documents = null;
+            return false;
+        }
+        queryId = pending[0];
+        if (!seenQueries.add(queryId)) {
+            throw new IllegalStateException("Run file " + runFile + " is not grouped by query: " + queryId
+                    + " appears in more than one block");
+        }
+        ranking = new LinkedHashMap<>();
+        documents = new ArrayList<>();
+        while (pending != null && pending[0].equals(queryId)) {
+            ranking.put(pending[2], Double.parseDouble(pending[4]));
+            documents.add(pending[2]);
+            pending = readLine();
+        }
+        return true;
+    }
+
+    /**
+     * Id of the current query, or null before the first call to next() and after the last query.
+     */
+    public String getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Ranking of the current query: Map where Key = Document and Value = Score, in file order.
+     */
+    @NotNull
+    public LinkedHashMap<String, Double> getRanking() {
+        if (ranking == null) {
+            throw new IllegalStateException("No current query");
+        }
+        return ranking;
+    }
+
+    /**
+     * Documents of the current query, one per line in file order. Unlike getRanking(), a document listed more than
+     * once in the block is kept every time.
+     */
+    @NotNull
+    public List<String> getDocuments() {
+        if (documents == null) {
+            throw new IllegalStateException("No current query");
+        }
+        return documents;
+    }
+
+    /**
+     * Number of queries in a run file, counted without keeping the rankings.
+     * @param runFile Run file grouped by query.
+     * @return int
+     */
+    public static int countQueries(String runFile) {
+        int n = 0;
+        try (RunFileReader run = new RunFileReader(runFile)) {
+            while (run.next()) {
+                n++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return n;
+    }
+
+    private String[] readLine() throws IOException {
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (!line.isEmpty()) {
+                return line.split(" ");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        br.close();
+    }
+}
@@ -0,0 +1,204 @@
+package help;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of search results which is kept in a local file between invocations.
+ * A result is a ranked list of (Id, Score) pairs, keyed by similarity, number of hits and the analyzed query.
+ * The file records the version and commit generation of the index it was built from (combined over the shards of
+ * a sharded index); if the index has changed since, the cached results are dropped when the cache is loaded.
+ *
+ * The file is never modified in place: save() writes a new file next to it and atomically moves it over the old one,
+ * so readers always see a complete file. Concurrent writers are serialized with a lock file, and each writer merges
+ * the entries saved by others before writing.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class SearchResultCache {
+    private static final int MAGIC = 0x53524331; // "SRC1"
+
+    private final Path cacheFile;
+    private final long indexVersion;
+    private final long indexGeneration;
+    private final Map<String, LinkedHashMap<String, Double>> results = new ConcurrentHashMap<>();
+    private volatile boolean modified = false;
+
+    /**
+     * Load the cache for the index of the searcher.
+     * @param cacheFile Path to the cache file (created on the first save() if it does not exist).
+     * @param searcher IndexSearcher whose results are cached.
+     */
+    public SearchResultCache(String cacheFile, @NotNull IndexSearcher searcher) {
+        this.cacheFile = new File(cacheFile).toPath().toAbsolutePath();
+        // A sharded index has one commit per shard; the cache is dropped if any of them changes
+        IndexReader[] readers;
+        if (searcher instanceof ShardedIndexSearcher) {
+            ShardedIndexSearcher sharded = (ShardedIndexSearcher) searcher;
+            readers = new IndexReader[sharded.numShards()];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = sharded.getShardReader(i);
+            }
+        } else {
+            readers = new IndexReader[]{searcher.getIndexReader()};
+        }
+        long version = 0, generation = 0;
+        try {
+            for (IndexReader reader : readers) {
+                if (!(reader instanceof DirectoryReader)) {
+                    version = generation = -1;
+                    break;
+                }
+                // With a single index these are just its version and generation
+                version = 31 * version + ((DirectoryReader) reader).getVersion();
+                generation = 31 * generation + ((DirectoryReader) reader).getIndexCommit().getGeneration();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            version = generation = -1;
+        }
+        this.indexVersion = version;
+        this.indexGeneration = generation;
+
+        if (Files.exists(this.cacheFile)) {
+            int n = read(results);
+            System.out.println("Loaded " + n + " cached results from: " + cacheFile);
+        }
+    }
+
+    /**
+     * Make the cache key of a search.
+     * @param similarity Name of the similarity.
+     * @param n Number of hits.
+     * @param query Query; its string form is used, which for an analyzed BooleanQuery is already normalized.
+     * @return Key
+     */
+    @NotNull
+    public static String key(String similarity, int n, @NotNull Query query) {
+        return similarity + "|" + n + "|" + query.toString();
+    }
+
+    /**
+     * Get a cached result.
+     * @param key Key made by key().
+     * @return A copy of the ranked (Id, Score) pairs, or null if the search is not cached.
+     */
+    @Nullable
+    public LinkedHashMap<String, Double> get(String key) {
+        LinkedHashMap<String, Double> result = results.get(key);
+        return result == null ? null : new LinkedHashMap<>(result);
+    }
+
+    public void put(String key, @NotNull Map<String, Double> result) {
+        results.put(key, new LinkedHashMap<>(result));
+        modified = true;
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Write the cache to its file, merged with any entries saved by other processes in the meantime.
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        Path lockFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+
+            Map<String, LinkedHashMap<String, Double>> merged = new LinkedHashMap<>();
+            if (Files.exists(cacheFile)) {
+                read(merged);
+            }
+            merged.putAll(results);
+
+            Path tmpFile = Files.createTempFile(cacheFile.toAbsolutePath().getParent(),
+                    cacheFile.getFileName().toString(), ".tmp");
+            try {
+                write(merged, tmpFile);
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+            modified = false;
+            System.out.println("Saved " + merged.size() + " cached results to: " + cacheFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the cache file into the map, unless it was built from another version of the index.
+     * @return Number of results read.
+     */
+    private int read(Map<String, LinkedHashMap<String, Double>> into) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(cacheFile))))) {
+            if (in.readInt() != MAGIC) {
+                System.err.println("Not a search result cache, ignoring: " + cacheFile);
+                return 0;
+            }
+            long version = in.readLong();
+            long generation = in.readLong();
+            if (version != indexVersion || generation != indexGeneration) {
+                System.out.println("Index has changed since the cache was written, ignoring: " + cacheFile);
+                return 0;
+            }
+            // Nothing is kept from a truncated file
+            Map<String, LinkedHashMap<String, Double>> entries = new LinkedHashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int n = in.readInt();
+                LinkedHashMap<String, Double> result = new LinkedHashMap<>();
+                for (int j = 0; j < n; j++) {
+                    String id = in.readUTF();
+                    result.put(id, in.readDouble());
+                }
+                entries.put(key, result);
+            }
+            into.putAll(entries);
+            return count;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private void write(@NotNull Map<String, LinkedHashMap<String, Double>> entries, Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(file))))) {
+            out.writeInt(MAGIC);
+            out.writeLong(indexVersion);
+            out.writeLong(indexGeneration);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, LinkedHashMap<String, Double>> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Double> hit : entry.getValue().entrySet()) {
+                    out.writeUTF(hit.getKey());
+                    out.writeDouble(hit.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package help;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A searcher over an index built as several shards, partitioned on the Id of the documents.
+ * A sharded index is a directory with one sub-directory per shard ("shard-0", "shard-1", ...) and a file "shards"
+ * holding the number of shards. A document lives in shard shardOf(Id, numShards).
+ *
+ * The shards are searched as one index through a MultiReader, so scores use the statistics of the whole collection
+ * and are the same as with a single index. Searches fan out over the segments of all shards on a pool of threads.
+ * A lookup by Id only searches the shard owning the Id.
+ *
+ * @author Shubham Chatterjee
+ * @version 10/19/2026
+ */
+
+public class ShardedIndexSearcher extends IndexSearcher {
+    public static final String SHARDS_FILE = "shards";
+
+    private final IndexSearcher[] shards;
+    private final IndexReader[] shardReaders;
+
+    private ShardedIndexSearcher(@NotNull IndexReader[] shardReaders, ExecutorService executor) throws IOException {
+        super(new MultiReader(shardReaders), executor);
+        this.shardReaders = shardReaders.clone();
+        this.shards = new IndexSearcher[shardReaders.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new IndexSearcher(shardReaders[i]);
+        }
+    }
+
+    /**
+     * The shard of a document.
+     * String.hashCode() is specified by the language, so the partition does not depend on the JVM.
+     * @param id Id of the document.
+     * @param numShards Number of shards.
+     * @return Shard number
+     */
+    public static int shardOf(@NotNull String id, int numShards) {
+        return Math.floorMod(id.hashCode(), numShards);
+    }
+
+    /**
+     * Directory of a shard in a sharded index.
+     */
+    @NotNull
+    public static File shardDir(String indexDir, int shard) {
+        return new File(indexDir, "shard-" + shard);
+    }
+
+    /**
+     * Mark a directory as a sharded index.
+     * @param indexDir Directory of the index.
+     * @param numShards Number of shards.
+     */
+    public static void writeLayout(String indexDir, int numShards) throws IOException {
+        File dir = new File(indexDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create: " + indexDir);
+        }
+        Files.write(new File(dir, SHARDS_FILE).toPath(),
+                String.valueOf(numShards).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Number of shards of a sharded index, or 0 if the directory holds a single index.
+     */
+    public static int numShards(String indexDir) throws IOException {
+        File file = new File(indexDir, SHARDS_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Open a sharded index.
+     * @param indexDir Directory of the index.
+     * @param numThreads Number of threads searching the shards.
+     * @return ShardedIndexSearcher
+     */
+    @NotNull
+    public static ShardedIndexSearcher open(String indexDir, int numThreads) throws IOException {
+        int numShards = numShards(indexDir);
+        IndexReader[] readers = new IndexReader[numShards];
+        for (int i = 0; i < numShards; i++) {
+            readers[i] = DirectoryReader.open(FSDirectory.open(shardDir(indexDir, i).toPath()));
+        }
+        // Daemon threads, so that the searcher does not keep the program alive
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads), r -> {
+            Thread thread = new Thread(r, "shard-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new ShardedIndexSearcher(readers, executor);
+    }
+
+    public int numShards() {
+        return shards.length;
+    }
+
+    /**
+     * Reader of a shard, e.g. to get the commit of the shard.
+     */
+    public IndexReader getShardReader(int shard) {
+        return shardReaders[shard];
+    }
+
+    @Override
+    public void setSimilarity(Similarity similarity) {
+        super.setSimilarity(similarity);
+        for (IndexSearcher shard : shards) {
+            shard.setSimilarity(similarity);
+        }
+    }
+
+    /**
+     * Look up a document by Id in the shard owning it.
+     * @param id Id of the document.
+     * @return The document or null if there is no document with this Id.
+     */
+    @Nullable
+    public Document searchId(@NotNull String id) throws IOException {
+        IndexSearcher shard = shards[shardOf(id, shards.length)];
+        TopDocs tds = shard.search(new TermQuery(new Term("Id", id)), 1);
+        if (tds.scoreDocs.length != 0) {
+            return shard.doc(tds.scoreDocs[0].doc);
+        }
+        return null;
+    }
+}
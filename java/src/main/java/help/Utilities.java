@@ -51,6 +51,16 @@ public class Utilities {
         return rankings;
     }
 
+    /**
+     * Reads a run file into memory.
+     * @param runFile Run file to read.
+     * @return Map where Key = QueryId and Value = (Map where Key = Document and Value = Score) in file order.
+     */
+    @NotNull
+    public static Map<String, LinkedHashMap<String, Double>> readRunFile(String runFile) {
+        return readFile(runFile);
+    }
+
     /**
      * Reads a simple (Key, Value) TSV/CSV file and returns a Map.
      * @param file File to read.
@@ -88,6 +98,28 @@ public class Utilities {
         return fileMap;
     }
 
+    /**
+     * Reads a (Key, Value) dictionary.
+     * A .fst file built by FstDictionary is memory-mapped and looked up in place; any other file is read with
+     * readTsvOrCsvFile().
+     * @param file File to read.
+     * @param fileType TSV or CSV (ignored for a .fst file).
+     * @return Map of key, value pairs from file.
+     */
+
+    @NotNull
+    public static Map<String, String> readDictionary(@NotNull String file, @NotNull String fileType) {
+        if (file.endsWith(".fst")) {
+            try {
+                return new FstDictionary(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new HashMap<>();
+            }
+        }
+        return readTsvOrCsvFile(file, fileType);
+    }
+
     /**
      * Write to a file in TSV or CSV format.
      * @param file File to be written.
@@ -226,6 +258,52 @@ public class Utilities {
                 .forEachOrdered(x -> reverseSortedMap.put(x.getKey(), x.getValue()));
         return reverseSortedMap;
     }
+
+    /**
+     * Convert aspect scores to entity scores: Score of entity = Sum of scores of the aspects of the entity.
+     * The entity scores are accumulated in entityScoreMap, which is cleared first so the caller can reuse it (and
+     * entityDictionary) from query to query. Ties keep the order in which the entities were first seen.
+     * @param aspectScores Map of (AspectId, AspectScore).
+     * @param aspectToEntityMap Map of (AspectId, EntityId); aspects without an entity are skipped.
+     * @param entityDictionary Scratch dictionary of entity ordinals.
+     * @param entityScoreMap Scratch map of entity scores.
+     * @return LinkedHashMap where Key = EntityId and Value = Score, sorted by descending score.
+     */
+    @NotNull
+    public static LinkedHashMap<String, Double> aspectToEntityScores(@NotNull Map<String, Double> aspectScores,
+                                                                     @NotNull Map<String, String> aspectToEntityMap,
+                                                                     @NotNull OrdinalDictionary entityDictionary,
+                                                                     @NotNull IntDoubleHashMap entityScoreMap) {
+        entityDictionary.clear();
+        entityScoreMap.clear();
+        for (Map.Entry<String, Double> entry : aspectScores.entrySet()) {
+            String entity = aspectToEntityMap.get(entry.getKey());
+            if (entity != null) {
+                entityScoreMap.addTo(entityDictionary.ordinal(entity), entry.getValue());
+            }
+        }
+        return entityScoreMap.toSortedMap(entityDictionary);
+    }
+
+    /**
+     * Same as above, for aspect scores held in a primitive map keyed by the ordinals of aspectDictionary.
+     */
+    @NotNull
+    public static LinkedHashMap<String, Double> aspectToEntityScores(@NotNull IntDoubleHashMap aspectScores,
+                                                                     @NotNull OrdinalDictionary aspectDictionary,
+                                                                     @NotNull Map<String, String> aspectToEntityMap,
+                                                                     @NotNull OrdinalDictionary entityDictionary,
+                                                                     @NotNull IntDoubleHashMap entityScoreMap) {
+        entityDictionary.clear();
+        entityScoreMap.clear();
+        aspectScores.forEach((aspect, score) -> {
+            String entity = aspectToEntityMap.get(aspectDictionary.get(aspect));
+            if (entity != null) {
+                entityScoreMap.addTo(entityDictionary.ordinal(entity), score);
+            }
+        });
+        return entityScoreMap.toSortedMap(entityDictionary);
+    }
     /**
      * Reads the stop words file.
      * @param stopWordsFilePath String Path to the stop words file.
@@ -305,6 +383,43 @@ public class Utilities {
         return booleanQuery.build();
     }
 
+    /**
+     * Same as above, but the expansion terms are given as ordinals and weights.
+     * This is the form produced by IntDoubleHashMap.topK() so that no Map.Entry objects are needed.
+     * @param termOrds Ordinals of the expansion terms, best first.
+     * @param termWeights Weights of the expansion terms.
+     * @param numTerms Number of valid entries in termOrds and termWeights.
+     * @param termDictionary Dictionary used to resolve the ordinals to terms.
+     */
+    public static BooleanQuery toRm3Query(String queryStr,
+                                          int[] termOrds,
+                                          double[] termWeights,
+                                          int numTerms,
+                                          OrdinalDictionary termDictionary,
+                                          boolean omitQueryTerms,
+                                          String searchField,
+                                          Analyzer analyzer) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
+
+        if (!omitQueryTerms) {
+            tokenizeQuery(queryStr, searchField, tokens, analyzer);
+            for (String token : tokens) {
+                booleanQuery.add(new BoostQuery(new TermQuery(new Term(searchField, token)), 1.0f),
+                        BooleanClause.Occur.SHOULD);
+            }
+        }
+
+        // add RM3 terms
+        int n = Math.min(numTerms, 64 - tokens.size());
+        for (int i = 0; i < n; i++) {
+            String token = termDictionary.get(termOrds[i]);
+            booleanQuery.add(new BoostQuery(new TermQuery(new Term(searchField, token)), (float) termWeights[i]),
+                    BooleanClause.Occur.SHOULD);
+        }
+        return booleanQuery.build();
+    }
+
     @NotNull
     public static String processQuery(@NotNull String query) {
         return query